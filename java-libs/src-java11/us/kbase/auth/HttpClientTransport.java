@@ -0,0 +1,131 @@
+package us.kbase.auth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * An {@link AuthTransport} that sends requests with the java.net.http
+ * HttpClient. Over https the client negotiates HTTP/2 with servers that
+ * support it, so concurrent requests to a host are multiplexed over a single
+ * connection rather than each needing a connection of their own. Otherwise
+ * the client falls back to HTTP/1.1 with its own connection pool.
+ *
+ * Requests fail with an HttpTimeoutException if the response doesn't arrive
+ * within the request timeout. The default timeouts match the defaults of
+ * {@link HttpURLConnectionTransport}. As with any transport, the size of the
+ * response body the client reads is limited by
+ * {@link AuthConfig#withMaxResponseSize(int)}.
+ *
+ * To use this transport with an auth client:
+ * <code>
+ * new AuthConfig().withTransport(new HttpClientTransport());
+ * </code>
+ *
+ * This class requires Java 11 and is thread safe.
+ */
+public class HttpClientTransport implements AuthTransport {
+
+	/**
+	 * Default time to wait for a response in milliseconds.
+	 */
+	public static final int DEFAULT_TIMEOUT_MSEC =
+			HttpURLConnectionTransport.DEFAULT_READ_TIMEOUT_MSEC;
+
+	private final HttpClient client;
+	private final Duration timeout;
+
+	/**
+	 * Create a new transport with a client that prefers HTTP/2.
+	 */
+	public HttpClientTransport() {
+		this(HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(Duration.ofMillis(HttpURLConnectionTransport
+						.DEFAULT_CONNECT_TIMEOUT_MSEC))
+				.build());
+	}
+
+	/**
+	 * Create a new transport with a client configured by the caller, e.g.
+	 * with a custom executor or SSL context, and the default timeout.
+	 * @param client the client.
+	 */
+	public HttpClientTransport(final HttpClient client) {
+		this(client, DEFAULT_TIMEOUT_MSEC);
+	}
+
+	/**
+	 * Create a new transport with a client configured by the caller.
+	 * @param client the client.
+	 * @param timeoutMSec how long to wait for a response, in milliseconds.
+	 */
+	public HttpClientTransport(
+			final HttpClient client,
+			final int timeoutMSec) {
+		if (client == null) {
+			throw new NullPointerException("client cannot be null");
+		}
+		if (timeoutMSec < 1) {
+			throw new IllegalArgumentException("timeoutMSec must be > 0");
+		}
+		this.client = client;
+		this.timeout = Duration.ofMillis(timeoutMSec);
+	}
+
+	/**
+	 * Returns the client used by this transport.
+	 * @return the client.
+	 */
+	public HttpClient getClient() {
+		return client;
+	}
+
+	@Override
+	public AuthResponse send(final AuthRequest request) throws IOException {
+		try {
+			final HttpResponse<InputStream> r = client.send(toRequest(request),
+					HttpResponse.BodyHandlers.ofInputStream());
+			return toResponse(r.statusCode(), r.body());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			final InterruptedIOException ie = new InterruptedIOException(
+					"Interrupted while waiting for " + request.getURL());
+			ie.initCause(e);
+			throw ie;
+		}
+	}
+
+	private HttpRequest toRequest(final AuthRequest request)
+			throws IOException {
+		final HttpRequest.Builder b;
+		try {
+			b = HttpRequest.newBuilder(request.getURL().toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException("Illegal URL: " + request.getURL(), e);
+		}
+		for (final Map.Entry<String, String> h:
+				request.getHeaders().entrySet()) {
+			b.header(h.getKey(), h.getValue());
+		}
+		final byte[] body = request.getBody();
+		b.method(request.getMethod(), body == null ?
+				HttpRequest.BodyPublishers.noBody() :
+				HttpRequest.BodyPublishers.ofByteArray(body));
+		return b.timeout(timeout).build();
+	}
+
+	private static AuthResponse toResponse(
+			final int code,
+			final InputStream body) {
+		// HTTP/2 has no reason phrases
+		return new AuthResponse(code, "", body);
+	}
+}
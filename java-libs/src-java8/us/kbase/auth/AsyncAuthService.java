@@ -0,0 +1,213 @@
+package us.kbase.auth;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * An asynchronous wrapper around the ConfigurableAuthService class. Each
+ * method returns a CompletableFuture rather than blocking the calling thread
+ * while the auth servers are queried. The queries are run on the executor
+ * provided to the constructor.
+ *
+ * Instances of AsyncAuthService share the same caches as the AuthService and
+ * ConfigurableAuthService classes. If a login, token validation, profile or
+ * user name request can be answered from the caches, the returned future is
+ * already complete and the executor is not used. User detail requests
+ * always use the executor.
+ *
+ * A future that fails completes exceptionally with a CompletionException
+ * whose cause is the exception the equivalent ConfigurableAuthService method
+ * would throw, e.g. AuthException, IOException or TokenExpiredException.
+ *
+ * This class requires Java 8.
+ */
+public class AsyncAuthService {
+
+	private final AuthConfig config;
+	private final ConfigurableAuthService auth;
+	private final Executor executor;
+
+	/** Create an asynchronous authorization service client.
+	 * @param config the configuration for the auth client.
+	 * @param executor the executor on which to query the auth servers.
+	 * @throws IOException if an IO error occurs.
+	 */
+	public AsyncAuthService(final AuthConfig config, final Executor executor)
+			throws IOException {
+		if (executor == null) {
+			throw new NullPointerException("executor cannot be null");
+		}
+		auth = new ConfigurableAuthService(config);
+		this.config = config;
+		this.executor = executor;
+	}
+
+	/** Returns the blocking client that this client wraps.
+	 * @return the blocking client.
+	 */
+	public ConfigurableAuthService getBlockingClient() {
+		return auth;
+	}
+
+	/**
+	 * Logs in a user. If the configuration remembers logins and the user
+	 * logged in recently the returned future is already complete.
+	 * @param userName the username
+	 * @param password the password
+	 * @param expiry the desired expiration time for the token in seconds.
+	 * @return a future containing an AuthUser that has been successfully
+	 * logged in.
+	 */
+	public CompletableFuture<AuthUser> login(
+			final String userName,
+			final String password,
+			final long expiry) {
+		final AuthUser cached;
+		try {
+			cached = AuthService.loginFromCache(
+					userName, password, expiry, config);
+		} catch (RuntimeException e) {
+			return failed(e);
+		}
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return run(() -> auth.login(userName, password, expiry));
+	}
+
+	/**
+	 * Logs in a user. If the configuration remembers logins and the user
+	 * logged in recently the returned future is already complete.
+	 * @param userName the username
+	 * @param password the password
+	 * @return a future containing an AuthUser that has been successfully
+	 * logged in.
+	 */
+	public CompletableFuture<AuthUser> login(
+			final String userName,
+			final String password) {
+		return login(userName, password, AuthToken.DEFAULT_EXPIRES);
+	}
+
+	/**
+	 * Given an AuthToken object for a logged in user, get the AuthUser object
+	 * representing that user's profile. If the profile is cached the
+	 * returned future is already complete.
+	 * @param token the token
+	 * @return a future containing the AuthUser associated with the given
+	 * token.
+	 */
+	public CompletableFuture<AuthUser> getUserFromToken(
+			final AuthToken token) {
+		final AuthUser cached;
+		try {
+			cached = AuthService.getUserFromTokenFromCache(token, config);
+		} catch (TokenExpiredException | RuntimeException e) {
+			return failed(e);
+		}
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return run(() -> auth.getUserFromToken(token));
+	}
+
+	/**
+	 * Validates a token. If the token's validity is known from the caches the
+	 * returned future is already complete.
+	 * @param token the token to validate
+	 * @return a future containing true if the token's valid, false otherwise.
+	 * The future fails with a TokenExpiredException if the token is expired.
+	 */
+	public CompletableFuture<Boolean> validateToken(final AuthToken token) {
+		final Boolean cached;
+		try {
+			cached = AuthService.validateTokenFromCache(token, config);
+		} catch (TokenExpiredException | RuntimeException e) {
+			return failed(e);
+		}
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return run(() -> AuthService.validateTokenWithServer(token, config)
+				.isValid());
+	}
+
+	/**
+	 * Validates a token.
+	 * @param tokenStr the token string retrieved from KBase
+	 * @return a future containing true if the token's valid, false otherwise.
+	 * The future fails with a TokenFormatException if the token string is
+	 * invalid.
+	 */
+	public CompletableFuture<Boolean> validateToken(final String tokenStr) {
+		final AuthToken token;
+		try {
+			token = AuthToken.parse(tokenStr);
+		} catch (TokenFormatException | RuntimeException e) {
+			return failed(e);
+		}
+		return validateToken(token);
+	}
+
+	/**
+	 * Checks whether strings are valid user names. If all the names are in
+	 * the cache the returned future is already complete.
+	 * @param usernames the usernames
+	 * @param token a valid token. If none is provided the token from the
+	 * configuration object is used, if any.
+	 * @return a future containing a mapping of username to validity.
+	 */
+	public CompletableFuture<Map<String, Boolean>> isValidUserName(
+			final List<String> usernames,
+			final AuthToken token) {
+		final Map<String, Boolean> cached;
+		try {
+			cached = AuthService.isValidUserNameFromCache(usernames);
+		} catch (RuntimeException e) {
+			return failed(e);
+		}
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return run(() -> auth.isValidUserName(usernames, token));
+	}
+
+	/**
+	 * Get information about users.
+	 * @param usernames the user names of the users that are the subject of
+	 * the request
+	 * @param token a valid token. If none is provided the token from the
+	 * configuration object is used, if any.
+	 * @return a future containing a mapping of username to user details.
+	 */
+	public CompletableFuture<Map<String, UserDetail>> fetchUserDetail(
+			final List<String> usernames,
+			final AuthToken token) {
+		return run(() -> auth.fetchUserDetail(usernames, token));
+	}
+
+	private interface Call<V> {
+		V call() throws AuthException, IOException;
+	}
+
+	private <V> CompletableFuture<V> run(final Call<V> call) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return call.call();
+			} catch (AuthException | IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	// wrapped like the exceptions thrown by calls run on the executor
+	private static <V> CompletableFuture<V> failed(final Throwable t) {
+		final CompletableFuture<V> f = new CompletableFuture<V>();
+		f.completeExceptionally(new CompletionException(t));
+		return f;
+	}
+}
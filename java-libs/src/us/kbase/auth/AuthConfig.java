@@ -4,7 +4,14 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** The configuration class for the KBase auth client. In most use cases the
  * default configuration will work.
@@ -22,6 +29,12 @@ public class AuthConfig {
 	private static final String DEFAULT_KBASE_USER_GROUP_ID =
 			"99d2a548-7218-11e2-adc0-12313d2d6e7f";
 	private static final RefreshingToken DEFAULT_TOKEN = null;
+	private static final int DEFAULT_USER_DETAIL_CONCURRENCY = 8;
+	private static final int DEFAULT_MAX_RESPONSE_SIZE = 1024 * 1024;
+	private static final int DEFAULT_PROFILE_CACHE_EXPIRY = 5 * 60;
+	private static final int DEFAULT_SIGNING_KEY_EXPIRY = 60 * 60;
+	private static final AuthTransport DEFAULT_TRANSPORT =
+			new HttpURLConnectionTransport();
 	
 	private static final String LOGIN_LOC = "Sessions/Login";
 	private static final String GLOBUS_GROUPS = "groups/";
@@ -31,6 +44,28 @@ public class AuthConfig {
 	private URI globusURL;
 	private UUID kbaseUsersGroupID;
 	private RefreshingToken token;
+	private int rejectedTokenCacheSize = RejectedTokenCache.DEFAULT_SIZE;
+	private int rejectedTokenCacheMaxSize =
+			RejectedTokenCache.DEFAULT_MAX_SIZE;
+	private int rejectedTokenCacheExpiry = RejectedTokenCache.DEFAULT_EXPIRY;
+	private volatile RejectedTokenCache rejectedTokenCache = null;
+	private int tokenCacheMaxStaleness = 0;
+	private int staleWhileErrorWindow = 0;
+	private int userDetailConcurrency = DEFAULT_USER_DETAIL_CONCURRENCY;
+	private volatile ThreadPoolExecutor userDetailExecutor = null;
+	private int userLookupBatchWindow = 0;
+	private volatile UserLookupBatcher userLookupBatcher = null;
+	private AuthTransport transport = DEFAULT_TRANSPORT;
+	private int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+	private Clock clock = Clock.system();
+	private int profileCacheExpiry = DEFAULT_PROFILE_CACHE_EXPIRY;
+	private volatile ProfileCache profileCache = null;
+	private List<String> trustedSigningSubjects =
+			Collections.<String>emptyList();
+	private int signingKeyExpiry = DEFAULT_SIGNING_KEY_EXPIRY;
+	private volatile SigningKeyCache signingKeyCache = null;
+	private int loginCacheWindow = 0;
+	private volatile LoginCache loginCache = null;
 	
 	/**
 	 * Create a configuration object with default settings. In this case the
@@ -119,6 +154,283 @@ public class AuthConfig {
 		this.token = token;
 		return this;
 	}
+	
+	/** Set the size of the cache of tokens that the authorization server
+	 * rejected. Validating a token in the cache fails without contacting the
+	 * server. This setting cannot be changed once the configuration has been
+	 * used to validate a token.
+	 * @param size the nominal size of the cache in tokens.
+	 * @param maxsize the maximum size of the cache in tokens.
+	 * @return this
+	 */
+	public synchronized AuthConfig withRejectedTokenCacheSize(
+			final int size,
+			final int maxsize) {
+		checkRejectedTokenCacheUnused();
+		if (size < 1 || maxsize < 1) {
+			throw new IllegalArgumentException("size and maxsize must be > 0");
+		}
+		if (size >= maxsize) {
+			throw new IllegalArgumentException("size must be < maxsize");
+		}
+		rejectedTokenCacheSize = size;
+		rejectedTokenCacheMaxSize = maxsize;
+		return this;
+	}
+	
+	/** Set how long a token that the authorization server rejected is
+	 * remembered. This setting cannot be changed once the configuration has
+	 * been used to validate a token.
+	 * @param seconds the time to remember a rejected token, in seconds.
+	 * @return this
+	 */
+	public synchronized AuthConfig withRejectedTokenCacheExpiry(
+			final int seconds) {
+		checkRejectedTokenCacheUnused();
+		if (seconds < 1) {
+			throw new IllegalArgumentException("seconds must be > 0");
+		}
+		rejectedTokenCacheExpiry = seconds;
+		return this;
+	}
+	
+	/** Set the maximum time a cached token is considered valid without
+	 * checking it against the authorization server again. Once a cached token
+	 * is older than three quarters of this time it is revalidated in the
+	 * background while the cached result is still returned. If the token is
+	 * not revalidated in time, the next validation blocks on the server. By
+	 * default, or if set to 0, cached tokens are trusted until they expire or
+	 * are evicted from the cache.
+	 * @param seconds the maximum staleness of a cached token, in seconds.
+	 * @return this
+	 */
+	public AuthConfig withTokenCacheMaxStaleness(final int seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("seconds must be >= 0");
+		}
+		tokenCacheMaxStaleness = seconds;
+		return this;
+	}
+	
+	/** Allow validating a token when the authorization server can't be
+	 * reached, as long as the token was successfully verified within the
+	 * given window. This applies both to cached tokens that are older than
+	 * the maximum staleness and to tokens that have been dropped from the
+	 * cache. Such degraded validations are counted, see
+	 * {@link AuthService#getDegradedValidationCount()}, and reported by
+	 * {@link ValidationResult#isDegraded()}. By default, or if set
+	 * to 0, validation fails with an IOException when the server can't be
+	 * reached.
+	 * @param seconds the maximum time since the last successful verification
+	 * of a token, in seconds.
+	 * @return this
+	 */
+	public AuthConfig withStaleWhileErrorWindow(final int seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("seconds must be >= 0");
+		}
+		staleWhileErrorWindow = seconds;
+		return this;
+	}
+	
+	/** Set the maximum number of concurrent requests made to the Globus
+	 * server when fetching the details of several users. This setting cannot
+	 * be changed once the configuration has been used to fetch user details.
+	 * @param concurrency the maximum number of concurrent requests.
+	 * @return this
+	 */
+	public synchronized AuthConfig withUserDetailConcurrency(
+			final int concurrency) {
+		if (userDetailExecutor != null) {
+			throw new IllegalStateException(
+					"The user detail executor is already in use");
+		}
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be > 0");
+		}
+		userDetailConcurrency = concurrency;
+		return this;
+	}
+	
+	/** Merge user detail lookups made by different threads with the same
+	 * token within a short window, so that each user name is only looked up
+	 * once. A lookup waits up to the window before it is sent to the Globus
+	 * server. By default, or if set to 0, lookups are not batched. This
+	 * setting cannot be changed once the configuration has been used to look
+	 * up users.
+	 * @param milliseconds the batching window in milliseconds.
+	 * @return this
+	 */
+	public synchronized AuthConfig withUserLookupBatchWindow(
+			final int milliseconds) {
+		if (userLookupBatcher != null) {
+			throw new IllegalStateException(
+					"The user lookup batcher is already in use");
+		}
+		if (milliseconds < 0) {
+			throw new IllegalArgumentException("milliseconds must be >= 0");
+		}
+		userLookupBatchWindow = milliseconds;
+		return this;
+	}
+	
+	/** Set the transport used to send requests to the KBase authorization
+	 * and Globus servers. By default requests are sent with an
+	 * {@link HttpURLConnectionTransport} that is shared by all configurations
+	 * that don't set a transport.
+	 * @param transport the transport.
+	 * @return this
+	 */
+	public AuthConfig withTransport(final AuthTransport transport) {
+		if (transport == null) {
+			throw new NullPointerException("transport cannot be null");
+		}
+		this.transport = transport;
+		return this;
+	}
+	
+	/** Set the maximum size of a response from the KBase authorization or
+	 * Globus servers. Reading a larger response fails with an IOException.
+	 * The default is 1MB.
+	 * @param bytes the maximum response size in bytes.
+	 * @return this
+	 */
+	public AuthConfig withMaxResponseSize(final int bytes) {
+		if (bytes < 1) {
+			throw new IllegalArgumentException("bytes must be > 0");
+		}
+		maxResponseSize = bytes;
+		return this;
+	}
+	
+	/** Set the clock that times the refreshes of refreshing tokens created
+	 * with this configuration. The default is the
+	 * {@link Clock#system() system clock}. Tests can substitute a clock they
+	 * control to trigger refreshes without waiting.
+	 * @param clock the clock.
+	 * @return this
+	 */
+	public AuthConfig withClock(final Clock clock) {
+		if (clock == null) {
+			throw new NullPointerException("clock cannot be null");
+		}
+		this.clock = clock;
+		return this;
+	}
+	
+	/** Set how long a user profile fetched by getUserFromToken is cached.
+	 * Each configuration caches profiles separately, since configurations
+	 * may use different servers. Cached profiles are dropped when their token
+	 * is rejected by the authorization server and are not served once their
+	 * token expires. Otherwise a profile's lifetime is separate from its
+	 * token's lifetime in the token cache, so a profile may remain cached
+	 * after the token cache evicts the token. If set to 0 profiles are
+	 * always fetched from the server. The default is 5 minutes.
+	 * @param seconds the time to cache a profile, in seconds.
+	 * @return this
+	 */
+	public AuthConfig withProfileCacheExpiry(final int seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("seconds must be >= 0");
+		}
+		profileCacheExpiry = seconds;
+		return this;
+	}
+	
+	/** Validate tokens locally, without contacting the authorization
+	 * server, when the token is signed by a key published under one of the
+	 * given URL prefixes, e.g.
+	 * https://nexus.api.globusonline.org/goauth/keys/. The key is fetched
+	 * from the token's signing subject URL and cached. Tokens that can't be
+	 * verified locally are checked with the server as usual. Note that a
+	 * locally verified token may have been revoked; use
+	 * {@link #withTokenCacheMaxStaleness(int)} to bound how long such a
+	 * token is trusted. By default no signing subjects are trusted and all
+	 * tokens are checked with the server. This setting cannot be changed once
+	 * the configuration has been used to validate a token.
+	 * @param urlPrefixes the URL prefixes of trusted signing subjects. Each
+	 * prefix must end with a '/'.
+	 * @return this
+	 */
+	public synchronized AuthConfig withTrustedSigningSubjects(
+			final List<String> urlPrefixes) {
+		checkSigningKeyCacheUnused();
+		if (urlPrefixes == null) {
+			throw new NullPointerException("urlPrefixes cannot be null");
+		}
+		final List<String> prefixes = new ArrayList<String>();
+		for (final String p: urlPrefixes) {
+			if (p == null) {
+				throw new NullPointerException(
+						"urlPrefixes cannot contain null");
+			}
+			if (!p.endsWith("/")) {
+				throw new IllegalArgumentException(
+						"urlPrefixes must end with /: " + p);
+			}
+			try {
+				new URL(p);
+			} catch (MalformedURLException e) {
+				throw new IllegalArgumentException(
+						"Invalid url prefix: " + p, e);
+			}
+			prefixes.add(p);
+		}
+		trustedSigningSubjects = Collections.unmodifiableList(prefixes);
+		return this;
+	}
+	
+	/** Set how long a key used to verify tokens locally is cached before it
+	 * is fetched again. The default is 1 hour. This setting cannot be
+	 * changed once the configuration has been used to validate a token.
+	 * @param seconds the time to cache a key, in seconds.
+	 * @return this
+	 */
+	public synchronized AuthConfig withSigningKeyExpiry(final int seconds) {
+		checkSigningKeyCacheUnused();
+		if (seconds < 1) {
+			throw new IllegalArgumentException("seconds must be > 0");
+		}
+		signingKeyExpiry = seconds;
+		return this;
+	}
+	
+	/** Remember successful logins for a short window, so that logging in
+	 * again with the same user name, password and token lifetime within the
+	 * window returns the same user and token without contacting the
+	 * authorization server. Concurrent logins with the same credentials are
+	 * merged into one login. Credentials are remembered by a salted hash,
+	 * never in plain text. Refreshing tokens always log in. By default, or if
+	 * set to 0, logins are not remembered. This setting cannot be changed
+	 * once the configuration has been used to log in.
+	 * @param seconds how long a login is remembered, in seconds.
+	 * @return this
+	 */
+	public synchronized AuthConfig withLoginCacheWindow(final int seconds) {
+		if (loginCache != null) {
+			throw new IllegalStateException(
+					"The login cache is already in use");
+		}
+		if (seconds < 0) {
+			throw new IllegalArgumentException("seconds must be >= 0");
+		}
+		loginCacheWindow = seconds;
+		return this;
+	}
+	
+	private void checkSigningKeyCacheUnused() {
+		if (signingKeyCache != null) {
+			throw new IllegalStateException(
+					"The signing key cache is already in use");
+		}
+	}
+	
+	private void checkRejectedTokenCacheUnused() {
+		if (rejectedTokenCache != null) {
+			throw new IllegalStateException(
+					"The rejected token cache is already in use");
+		}
+	}
 
 	/** Returns the configured KBase authorization service URL.
 	 * @return the authorization service URL.
@@ -156,6 +468,231 @@ public class AuthConfig {
 		return token;
 	}
 	
+	/** Returns the configured nominal size of the rejected token cache.
+	 * @return the nominal size of the cache in tokens.
+	 */
+	public int getRejectedTokenCacheSize() {
+		return rejectedTokenCacheSize;
+	}
+	
+	/** Returns the configured maximum size of the rejected token cache.
+	 * @return the maximum size of the cache in tokens.
+	 */
+	public int getRejectedTokenCacheMaxSize() {
+		return rejectedTokenCacheMaxSize;
+	}
+	
+	/** Returns the configured time a rejected token is remembered.
+	 * @return the time in seconds.
+	 */
+	public int getRejectedTokenCacheExpiry() {
+		return rejectedTokenCacheExpiry;
+	}
+	
+	/** Returns the configured maximum staleness of a cached token.
+	 * @return the maximum staleness in seconds, or 0 if cached tokens are
+	 * trusted until they expire or are evicted.
+	 */
+	public int getTokenCacheMaxStaleness() {
+		return tokenCacheMaxStaleness;
+	}
+	
+	/** Returns the configured window in which a previously verified token is
+	 * accepted when the authorization server can't be reached.
+	 * @return the window in seconds, or 0 if the server must be reachable.
+	 */
+	public int getStaleWhileErrorWindow() {
+		return staleWhileErrorWindow;
+	}
+	
+	/** Returns the configured maximum number of concurrent requests when
+	 * fetching the details of several users.
+	 * @return the maximum number of concurrent requests.
+	 */
+	public int getUserDetailConcurrency() {
+		return userDetailConcurrency;
+	}
+	
+	/** Returns the configured window in which user detail lookups from
+	 * different threads are merged.
+	 * @return the window in milliseconds, or 0 if lookups are not batched.
+	 */
+	public int getUserLookupBatchWindow() {
+		return userLookupBatchWindow;
+	}
+	
+	/** Returns the configured transport.
+	 * @return the transport.
+	 */
+	public AuthTransport getTransport() {
+		return transport;
+	}
+	
+	/** Returns the configured maximum size of a response from the servers.
+	 * @return the maximum response size in bytes.
+	 */
+	public int getMaxResponseSize() {
+		return maxResponseSize;
+	}
+	
+	/** Returns the configured clock.
+	 * @return the clock.
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+	
+	/** Returns the configured time a user profile is cached.
+	 * @return the time in seconds, or 0 if profiles are not cached.
+	 */
+	public int getProfileCacheExpiry() {
+		return profileCacheExpiry;
+	}
+	
+	/** Returns the URL prefixes of signing subjects trusted for local token
+	 * verification.
+	 * @return the trusted URL prefixes.
+	 */
+	public List<String> getTrustedSigningSubjects() {
+		return trustedSigningSubjects;
+	}
+	
+	/** Returns the configured time a key used to verify tokens locally is
+	 * cached.
+	 * @return the time in seconds.
+	 */
+	public int getSigningKeyExpiry() {
+		return signingKeyExpiry;
+	}
+	
+	/** Returns the configured time a login is remembered.
+	 * @return the time in seconds, or 0 if logins are not remembered.
+	 */
+	public int getLoginCacheWindow() {
+		return loginCacheWindow;
+	}
+	
+	/* The getters below are called for every request, so once the object
+	 * they return exists they read it from a volatile field without taking
+	 * the configuration's lock. The lock is only taken to create the object,
+	 * which also stops the settings it depends on from changing.
+	 */
+	
+	/** Returns the cache of recent logins for this configuration, creating
+	 * it on first use.
+	 * @return the login cache, or null if logins are not remembered.
+	 */
+	LoginCache getLoginCache() {
+		final LoginCache c = loginCache;
+		if (c != null || loginCacheWindow == 0) {
+			return c;
+		}
+		synchronized (this) {
+			if (loginCache == null) {
+				loginCache = new LoginCache(loginCacheWindow);
+			}
+			return loginCache;
+		}
+	}
+	
+	/** Returns the cache of user profiles for this configuration, creating
+	 * it on first use.
+	 * @return the profile cache.
+	 */
+	ProfileCache getProfileCache() {
+		final ProfileCache c = profileCache;
+		if (c != null) {
+			return c;
+		}
+		synchronized (this) {
+			if (profileCache == null) {
+				profileCache = new ProfileCache(ProfileCache.DEFAULT_SIZE,
+						ProfileCache.DEFAULT_MAX_SIZE);
+			}
+			return profileCache;
+		}
+	}
+	
+	/** Returns the cache of signing keys for this configuration, creating it
+	 * on first use.
+	 * @return the signing key cache, or null if no signing subjects are
+	 * trusted.
+	 */
+	SigningKeyCache getSigningKeyCache() {
+		final SigningKeyCache c = signingKeyCache;
+		if (c != null || trustedSigningSubjects.isEmpty()) {
+			return c;
+		}
+		synchronized (this) {
+			if (signingKeyCache == null) {
+				signingKeyCache = new SigningKeyCache(trustedSigningSubjects,
+						signingKeyExpiry, this);
+			}
+			return signingKeyCache;
+		}
+	}
+	
+	/** Returns the cache of rejected tokens for this configuration, creating
+	 * it on first use.
+	 * @return the rejected token cache.
+	 */
+	RejectedTokenCache getRejectedTokenCache() {
+		final RejectedTokenCache c = rejectedTokenCache;
+		if (c != null) {
+			return c;
+		}
+		synchronized (this) {
+			if (rejectedTokenCache == null) {
+				rejectedTokenCache = new RejectedTokenCache(
+						rejectedTokenCacheSize, rejectedTokenCacheMaxSize,
+						rejectedTokenCacheExpiry);
+			}
+			return rejectedTokenCache;
+		}
+	}
+	
+	/** Returns the executor used to fetch user details for this
+	 * configuration, creating it on first use. The executor's threads are
+	 * daemon threads and exit when idle.
+	 * @return the user detail executor.
+	 */
+	ExecutorService getUserDetailExecutor() {
+		final ExecutorService e = userDetailExecutor;
+		if (e != null) {
+			return e;
+		}
+		synchronized (this) {
+			if (userDetailExecutor == null) {
+				final ThreadPoolExecutor x = new ThreadPoolExecutor(
+						userDetailConcurrency, userDetailConcurrency,
+						60, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(),
+						new DaemonThreadFactory("kbase-auth-user-detail"));
+				x.allowCoreThreadTimeOut(true);
+				userDetailExecutor = x;
+			}
+			return userDetailExecutor;
+		}
+	}
+	
+	/** Returns the user lookup batcher for this configuration, creating it
+	 * on first use. Only valid if the batching window is greater than 0.
+	 * @return the user lookup batcher.
+	 */
+	UserLookupBatcher getUserLookupBatcher() {
+		final UserLookupBatcher b = userLookupBatcher;
+		if (b != null) {
+			return b;
+		}
+		synchronized (this) {
+			if (userLookupBatcher == null) {
+				userLookupBatcher = new UserLookupBatcher(
+						this, userLookupBatchWindow);
+			}
+			return userLookupBatcher;
+		}
+	}
+	
 	/** Returns the full URL used for logging in a user with the KBase
 	 * authorization service.
 	 * @return the auth service login URL.
@@ -0,0 +1,79 @@
+package us.kbase.auth;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request sent by an {@link AuthTransport}.
+ *
+ * This class is immutable.
+ */
+public class AuthRequest {
+
+	final private String method;
+	final private URL url;
+	final private Map<String, String> headers;
+	final private byte[] body;
+
+	/**
+	 * Create a new request.
+	 * @param method the HTTP method, e.g. GET or POST.
+	 * @param url the URL to which the request is sent.
+	 * @param headers the request headers. The Content-Length header is set by
+	 * the transport and should not be included.
+	 * @param body the request body, or null if the request has no body.
+	 */
+	public AuthRequest(
+			final String method,
+			final URL url,
+			final Map<String, String> headers,
+			final byte[] body) {
+		if (method == null || url == null) {
+			throw new NullPointerException("method and url cannot be null");
+		}
+		this.method = method;
+		this.url = url;
+		this.headers = headers == null ? Collections.<String, String>emptyMap() :
+				Collections.unmodifiableMap(new HashMap<String, String>(headers));
+		this.body = body == null ? null : body.clone();
+	}
+
+	/**
+	 * Returns the HTTP method.
+	 * @return the method.
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Returns the URL to which the request is sent.
+	 * @return the URL.
+	 */
+	public URL getURL() {
+		return url;
+	}
+
+	/**
+	 * Returns the request headers.
+	 * @return an unmodifiable map of header name to value.
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Returns the request body.
+	 * @return a copy of the body, or null if the request has no body.
+	 */
+	public byte[] getBody() {
+		return body == null ? null : body.clone();
+	}
+
+	@Override
+	public String toString() {
+		return "AuthRequest [method=" + method + ", url=" + url + "]";
+	}
+}
@@ -0,0 +1,88 @@
+package us.kbase.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An HTTP response received by an {@link AuthTransport}.
+ *
+ * The response body is streamed and must be released by calling
+ * {@link #close()} once the caller is done with the response, whether or not
+ * the body was read. Closing the response reads and discards any small
+ * amount of unread body so that the underlying connection can be reused.
+ */
+public class AuthResponse implements Closeable {
+
+	final private static int MAX_DRAIN = 64 * 1024;
+	
+	final private int code;
+	final private String message;
+	final private InputStream body;
+
+	/**
+	 * Create a new response.
+	 * @param code the HTTP status code.
+	 * @param message the HTTP status message.
+	 * @param body the response body, or null if the response has no body.
+	 */
+	public AuthResponse(
+			final int code,
+			final String message,
+			final InputStream body) {
+		this.code = code;
+		this.message = message;
+		this.body = body == null ? new ByteArrayInputStream(new byte[0]) :
+			body;
+	}
+
+	/**
+	 * Returns the HTTP status code.
+	 * @return the status code.
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Returns the HTTP status message.
+	 * @return the status message, or null if the server didn't send one.
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the response body. The body of an error response is returned
+	 * in the same way as that of a successful response.
+	 * @return the body.
+	 */
+	public InputStream getBody() {
+		return body;
+	}
+
+	/**
+	 * Release the response. Any exception while releasing the response is
+	 * ignored.
+	 */
+	@Override
+	public void close() {
+		try {
+			final byte[] buf = new byte[4096];
+			int drained = 0;
+			int read;
+			while (drained < MAX_DRAIN && (read = body.read(buf)) != -1) {
+				drained += read;
+			}
+		} catch (IOException e) {
+			// the connection can't be reused, nothing else to do
+		} finally {
+			try {
+				body.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
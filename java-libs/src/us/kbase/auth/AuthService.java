@@ -1,20 +1,35 @@
 package us.kbase.auth;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,7 +40,6 @@ import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * A fairly simple Auth service client for KBase.
@@ -40,7 +54,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * optionally validate it.
  * 
  * All tokens seen by this class are cached by the
- * {@link us.kbase.auth.TokenCache} class.
+ * {@link us.kbase.auth.TokenCache} class. Concurrent validations of, or
+ * requests for the user of, the same uncached token share a single request
+ * to the auth server.
  * 
  * @author wjriehl
  * @author gaprice@lbl.gov
@@ -50,10 +66,57 @@ public class AuthService {
 	private AuthService() {};
 	
 	private final static AuthConfig DEFAULT_CONFIG = new AuthConfig();
-	final static TokenCache TOKEN_CACHE = new TokenCache();
+	final static TokenCache TOKEN_CACHE = new TokenCache(
+			TokenCache.DEFAULT_SIZE, TokenCache.DEFAULT_MAX_SIZE, true);
 	final static StringCache USER_CACHE = new StringCache();
+	private final static Set<AuthUserField> ALL_FIELDS =
+			Collections.unmodifiableSet(EnumSet.allOf(AuthUserField.class));
+	private final static int GROUPS_MASK =
+			AuthUserField.mask(EnumSet.of(AuthUserField.GROUPS));
+	final static GroupIndex GROUP_INDEX =
+			new GroupIndex(GroupIndex.DEFAULT_MAX_GROUPS);
 	final static Pattern INVALID_USERNAME =
 			Pattern.compile("[^a-zA-Z0-9_-]");
+	private final static Map<String, String> LOGIN_HEADERS;
+	static {
+		final Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Content-Type", "application/x-www-form-urlencoded");
+		headers.put("Content-Language", "en-US");
+		LOGIN_HEADERS = Collections.unmodifiableMap(headers);
+	}
+	
+	// background revalidation of cached tokens nearing their max staleness
+	private final static int REVALIDATION_THREADS = 4;
+	private final static int REVALIDATION_QUEUE = 1000;
+	private final static ThreadPoolExecutor REVALIDATOR =
+			new ThreadPoolExecutor(REVALIDATION_THREADS, REVALIDATION_THREADS,
+					60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(REVALIDATION_QUEUE),
+					new DaemonThreadFactory("kbase-auth-token-revalidator"));
+	static {
+		REVALIDATOR.allowCoreThreadTimeOut(true);
+	}
+	private final static ConcurrentMap<String, Boolean> REVALIDATING =
+			new ConcurrentHashMap<String, Boolean>();
+	
+	private final static AtomicLong DEGRADED_VALIDATIONS = new AtomicLong();
+	private final static AtomicLong LOCAL_VALIDATIONS = new AtomicLong();
+	
+	private final static SingleFlight<FetchKey, AuthUser> FETCHES =
+			new SingleFlight<FetchKey, AuthUser>();
+	
+	/* When tokens were last verified, for configurations that accept stale
+	 * results when the auth server is down. Unlike the token cache, this is
+	 * not limited by the cache's admission filter or max staleness, and it
+	 * is only created if a configuration uses it.
+	 */
+	private static class VerifiedTokens {
+		final static DigestTable TABLE = new DigestTable(
+				TokenCache.DEFAULT_MAX_SIZE, TokenCache.DEFAULT_MAX_SIZE * 2,
+				false);
+	}
+	// set once the verification history is in use
+	private static volatile boolean verifiedTokensUsed = false;
 	
 	/**
 	 * Logs in a user and returns an AuthUser object, which is more or less a POJO containing basic user attributes,
@@ -80,6 +143,42 @@ public class AuthService {
 			final long expiry,
 			final AuthConfig config)
 			throws AuthException, IOException {
+		final LoginCache logins = config.getLoginCache();
+		if (logins == null) {
+			return loginWithServer(userName, password, expiry, config);
+		}
+		return logins.login(userName, password, expiry,
+				new LoginCache.Login() {
+			
+			@Override
+			public AuthUser login() throws AuthException, IOException {
+				return loginWithServer(userName, password, expiry, config);
+			}
+		});
+	}
+	
+	/* Returns the user from a recent login with the same credentials and
+	 * token lifetime, or null if the login must go to the server.
+	 */
+	static AuthUser loginFromCache(
+			final String userName,
+			final String password,
+			final long expiry,
+			final AuthConfig config) {
+		final LoginCache logins = config.getLoginCache();
+		if (logins == null) {
+			return null;
+		}
+		return logins.getRecent(userName, password, expiry);
+	}
+	
+	/* Logs in with the auth server, bypassing the login cache. */
+	static AuthUser loginWithServer(
+			final String userName,
+			final String password,
+			final long expiry,
+			final AuthConfig config)
+			throws AuthException, IOException {
 		// This is the data that will be POSTed to the service.
 		// By default (not sure if we *really* need to change it), it fetches all the fields.
 		try {
@@ -134,6 +233,12 @@ public class AuthService {
 	 * Given an AuthToken object for a logged in user, this returns the
 	 * AuthUser object representing that user's profile.
 	 * 
+	 * The profile is cached for the time set with
+	 * {@link AuthConfig#withProfileCacheExpiry(int)}, independently of the
+	 * token cache, and the cache entry is dropped if the token is rejected.
+	 * The returned AuthUser may be shared with other callers and its group
+	 * list cannot be modified.
+	 * 
 	 * @param token the token
 	 * @return an AuthUser associated with the given token.
 	 * @throws AuthException if the credentials are invalid
@@ -146,10 +251,216 @@ public class AuthService {
 	
 	static AuthUser getUserFromToken(AuthToken token, AuthConfig config)
 			throws AuthException, IOException {
-		String dataStr = "token=" + token.toString() +
-				 "&fields=user_id,name,email,groups,kbase_sessionid,token,verified,opt_in,system_admin";
-
-		return fetchUser(dataStr, token.getExpiryTime(), config);
+		return getUserFromToken(token, ALL_FIELDS, config);
+	}
+	
+	/* Returns a token's user using only the profile cache. Returns null if
+	 * any of the user's fields must be fetched from the server.
+	 */
+	static AuthUser getUserFromTokenFromCache(
+			final AuthToken token,
+			final AuthConfig config)
+			throws TokenExpiredException {
+		if(token.isExpired()) {
+			throw new TokenExpiredException("token expired");
+		}
+		final long maxAge = config.getProfileCacheExpiry() * 1000L;
+		if (maxAge == 0) {
+			return null;
+		}
+		final ProfileCache.Profile cached =
+				config.getProfileCache().get(token, maxAge);
+		if (cached == null || (AuthUserField.ALL & ~cached.fields) != 0) {
+			return null;
+		}
+		return withToken(cached, token);
+	}
+	
+	/**
+	 * Given an AuthToken object for a logged in user, this returns an
+	 * AuthUser object containing the requested fields of the user's profile.
+	 * The user ID is always included.
+	 * 
+	 * Profiles are cached, so a request for fields that were already fetched
+	 * for the token is answered without querying the server, and a request
+	 * for more fields only fetches the fields that are missing. The returned
+	 * user may contain fields other than those requested; fields that were
+	 * neither requested nor previously fetched have their default values.
+	 * The groups of the returned user cannot be modified.
+	 * 
+	 * @param token the token
+	 * @param fields the fields to fetch.
+	 * @return an AuthUser associated with the given token.
+	 * @throws AuthException if the credentials are invalid
+	 * @throws IOException if there is a problem communicating with the server.
+	 */
+	public static AuthUser getUserFromToken(
+			final AuthToken token,
+			final Set<AuthUserField> fields)
+			throws AuthException, IOException {
+		return getUserFromToken(token, fields, DEFAULT_CONFIG);
+	}
+	
+	static AuthUser getUserFromToken(
+			final AuthToken token,
+			final Set<AuthUserField> fields,
+			final AuthConfig config)
+			throws AuthException, IOException {
+		if (fields == null) {
+			throw new NullPointerException("fields cannot be null");
+		}
+		return withToken(getProfile(token, AuthUserField.mask(fields), config),
+				token);
+	}
+	
+	/* Returns the cached profile for a token, first fetching any of the
+	 * wanted fields that are missing.
+	 */
+	private static ProfileCache.Profile getProfile(
+			final AuthToken token,
+			final int wanted,
+			final AuthConfig config)
+			throws AuthException, IOException {
+		if(token.isExpired()) {
+			throw new TokenExpiredException("token expired");
+		}
+		final long maxAge = config.getProfileCacheExpiry() * 1000L;
+		final ProfileCache.Profile cached = maxAge == 0 ? null :
+			config.getProfileCache().get(token, maxAge);
+		final int missing = cached == null ? wanted :
+			(wanted & ~cached.fields);
+		if (missing == 0) {
+			return cached;
+		}
+		// the user ID is needed to check the response is for the right user
+		final int fetch = missing | AuthUserField.USER_ID.bit();
+		final String dataStr = "token=" + token.toString() + "&fields=" +
+				AuthUserField.fieldNames(fetch);
+		final long now = Clock.system().millis();
+		final AuthUser user;
+		try {
+			user = fetchUserCoalesced(dataStr, token.getExpiryTime(), config);
+		} catch (CredentialsRejectedException e) {
+			rejectToken(token, config);
+			throw e;
+		}
+		final ProfileCache.Profile p;
+		if (cached == null || user.getUserId() == null ||
+				!user.getUserId().equals(cached.user.getUserId())) {
+			p = newProfile(AuthUser.empty().merge(user, fetch), fetch, now);
+		} else {
+			p = newProfile(cached.user.merge(user, fetch),
+					cached.fields | fetch, cached.fetched);
+		}
+		if (maxAge > 0) {
+			config.getProfileCache().put(token, p);
+		}
+		return p;
+	}
+	
+	private static ProfileCache.Profile newProfile(
+			final AuthUser user,
+			final int fields,
+			final long fetched) {
+		long[] groups = null;
+		if ((fields & AuthUserField.GROUPS.bit()) != 0) {
+			final List<String> g = user.getGroups();
+			groups = GROUP_INDEX.bits(g == null ?
+					Collections.<String>emptyList() : g);
+		}
+		return new ProfileCache.Profile(user, fields, fetched, groups);
+	}
+	
+	/**
+	 * Checks whether the user a token represents is a member of a group.
+	 * 
+	 * The check uses the user's cached profile (see
+	 * {@link #getUserFromToken(AuthToken, Set)}), fetching the user's groups
+	 * from the server only if they are not cached. Group names are indexed so
+	 * that the check does not scan the user's list of groups.
+	 * 
+	 * @param token the token
+	 * @param group the name of the group.
+	 * @return true if the user is a member of the group.
+	 * @throws AuthException if the credentials are invalid
+	 * @throws IOException if there is a problem communicating with the server.
+	 */
+	public static boolean isMember(final AuthToken token, final String group)
+			throws AuthException, IOException {
+		return isMember(token, group, DEFAULT_CONFIG);
+	}
+	
+	static boolean isMember(
+			final AuthToken token,
+			final String group,
+			final AuthConfig config)
+			throws AuthException, IOException {
+		if (group == null) {
+			throw new NullPointerException("group cannot be null");
+		}
+		return isMember(getProfile(token, GROUPS_MASK, config), group);
+	}
+	
+	/**
+	 * Checks whether the user a token represents is a member of any of a set
+	 * of groups. See {@link #isMember(AuthToken, String)}.
+	 * 
+	 * @param token the token
+	 * @param groups the names of the groups.
+	 * @return true if the user is a member of at least one of the groups.
+	 * @throws AuthException if the credentials are invalid
+	 * @throws IOException if there is a problem communicating with the server.
+	 */
+	public static boolean memberOfAny(
+			final AuthToken token,
+			final Collection<String> groups)
+			throws AuthException, IOException {
+		return memberOfAny(token, groups, DEFAULT_CONFIG);
+	}
+	
+	static boolean memberOfAny(
+			final AuthToken token,
+			final Collection<String> groups,
+			final AuthConfig config)
+			throws AuthException, IOException {
+		if (groups == null) {
+			throw new NullPointerException("groups cannot be null");
+		}
+		final ProfileCache.Profile p = getProfile(token, GROUPS_MASK, config);
+		for (final String group: groups) {
+			if (group == null) {
+				throw new NullPointerException("groups cannot contain null");
+			}
+			if (isMember(p, group)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean isMember(
+			final ProfileCache.Profile profile,
+			final String group) {
+		if (profile.groups != null) {
+			return GROUP_INDEX.isSet(profile.groups, group);
+		}
+		// too many groups to index
+		final List<String> g = profile.user.getGroups();
+		return g != null && g.contains(group);
+	}
+	
+	/* The token in a cached profile may have a different expiry time than
+	 * the token the caller provided, so return the caller's token.
+	 */
+	private static AuthUser withToken(
+			final ProfileCache.Profile profile,
+			final AuthToken token) {
+		final AuthToken cached = profile.user.getToken();
+		if (cached == null ||
+				cached.getExpiryTime() == token.getExpiryTime()) {
+			return profile.user;
+		}
+		return profile.user.withToken(token);
 	}
 	
 	/**
@@ -170,6 +481,24 @@ public class AuthService {
 		return isValidUserName(usernames, token, DEFAULT_CONFIG);
 	}
 	
+	/* Checks user names using only the user cache. Returns null if any of
+	 * the names must be checked with the Globus server.
+	 */
+	static Map<String, Boolean> isValidUserNameFromCache(
+			final List<String> usernames) {
+		final Map<String, Boolean> result = new HashMap<String, Boolean>();
+		for (String user: usernames) {
+			if (user == null) {
+				continue;
+			}
+			if (!USER_CACHE.hasString(user)) {
+				return null;
+			}
+			result.put(user, true);
+		}
+		return result;
+	}
+	
 	static Map<String, Boolean> isValidUserName(
 			final List<String> usernames,
 			final AuthToken token,
@@ -220,87 +549,192 @@ public class AuthService {
 			final AuthToken token,
 			final AuthConfig config)
 			throws IOException, AuthException {
+		final Map<String, UserDetailResult> results =
+				fetchUserDetailResults(usernames, token, config);
+		final Map<String, UserDetail> result = new HashMap<String, UserDetail>();
+		for (final UserDetailResult r: results.values()) {
+			result.put(r.getUserName(), null);
+		}
+		Exception error = null;
+		for (final UserDetailResult r: results.values()) {
+			if (!r.isSuccess()) {
+				if (error == null) {
+					error = r.getError();
+				}
+			} else if (r.getDetail() != null) {
+				result.put(r.getDetail().getUserName(), r.getDetail());
+			}
+		}
+		if (error instanceof AuthException) {
+			throw (AuthException) error;
+		}
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		}
+		if (error != null) {
+			throw (RuntimeException) error;
+		}
+		return result;
+	}
+	
+	/**
+	 * Get information about users, returning the result of each user's
+	 * lookup separately. Unlike
+	 * {@link #fetchUserDetail(List, AuthToken)}, a failed lookup does not
+	 * cause the successful lookups to be discarded. Note that in order to see
+	 * all users in the specified group, the user the provided token
+	 * represents must be an administrator of the group. Otherwise users with
+	 * private profiles will not be visible.
+	 * @param usernames the user names of the users that are the subject of the request
+	 * @param token a valid token.
+	 * @return a mapping of username to the result of the lookup for that
+	 * user.
+	 * @throws IOException if the thread is interrupted while waiting for the
+	 * lookups.
+	 * @throws IllegalArgumentException if a username is invalid.
+	 */
+	public static Map<String, UserDetailResult> fetchUserDetailResults(
+			final List<String> usernames,
+			final AuthToken token)
+			throws IOException {
+		return fetchUserDetailResults(usernames, token, DEFAULT_CONFIG);
+	}
+	
+	static Map<String, UserDetailResult> fetchUserDetailResults(
+			final List<String> usernames,
+			final AuthToken token,
+			final AuthConfig config)
+			throws IOException {
 		if (token == null) {
 			throw new NullPointerException("token cannot be null");
 		}
 		//TODO WAIT when auth service supports, just query auth service for this
-		final Map<String, UserDetail> result = new HashMap<String, UserDetail>();
+		final Set<String> names = new HashSet<String>();
 		for (String un: usernames) {
 			if (un == null) {
 				continue;
 			}
-			result.put(un, null);
 			final Matcher m = INVALID_USERNAME.matcher(un);
 			if (m.find()) {
 				throw new IllegalArgumentException(
 						"username " + un + " has invalid character: " + m.group(0));
 			}
+			names.add(un);
 		}
-		if (result.keySet().isEmpty()) {
+		if (config.getUserLookupBatchWindow() > 0 && !names.isEmpty()) {
+			return config.getUserLookupBatcher().lookup(names, token);
+		}
+		return resolveUserDetails(names, token, config);
+	}
+	
+	/* Looks up each of the names, which must have been checked already. */
+	static Map<String, UserDetailResult> resolveUserDetails(
+			final Set<String> names,
+			final AuthToken token,
+			final AuthConfig config)
+			throws IOException {
+		final Map<String, UserDetailResult> result =
+				new HashMap<String, UserDetailResult>();
+		if (names.size() < 2) { // no point in a thread hop
+			for (final String name: names) {
+				result.put(name, lookupUserDetail(name, token, config));
+			}
 			return result;
 		}
-		for (final String name: result.keySet()) {
-			URL query = null;
-			try {
-				query = new URL(config.getGlobusGroupMembersURL().toString()
-						+ name);
-			} catch (MalformedURLException mue) {
-				throw new RuntimeException("globus url " +
-						config.getGlobusGroupMembersURL() + 
-						" magically has illegal characters", mue);
+		// the lookups run concurrently, up to the configured limit
+		final Map<String, Future<UserDetailResult>> lookups =
+				new HashMap<String, Future<UserDetailResult>>();
+		final ExecutorService executor = config.getUserDetailExecutor();
+		for (final String name: names) {
+			lookups.put(name, executor.submit(new Callable<UserDetailResult>() {
+				
+				@Override
+				public UserDetailResult call() {
+					return lookupUserDetail(name, token, config);
+				}
+			}));
+		}
+		try {
+			for (final String name: lookups.keySet()) {
+				try {
+					result.put(name, lookups.get(name).get());
+				} catch (ExecutionException e) { // only Errors get here
+					throw new RuntimeException(e.getCause());
+				}
 			}
-			final HttpURLConnection conn = (HttpURLConnection) query.openConnection();
-			conn.setRequestProperty("X-Globus-Goauthtoken", token.toString());
-			conn.setRequestMethod("GET");
-			conn.setDoOutput(true);
-			conn.setUseCaches(false);
-			
-			int responseCode = conn.getResponseCode();
+		} catch (InterruptedException e) {
+			for (final Future<UserDetailResult> f: lookups.values()) {
+				f.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			final InterruptedIOException ie = new InterruptedIOException(
+					"Interrupted while waiting for user details");
+			ie.initCause(e);
+			throw ie;
+		}
+		return result;
+	}
+	
+	private static UserDetailResult lookupUserDetail(
+			final String name,
+			final AuthToken token,
+			final AuthConfig config) {
+		try {
+			return new UserDetailResult(name,
+					fetchOneUserDetail(name, token, config));
+		} catch (AuthException e) {
+			return new UserDetailResult(name, e);
+		} catch (IOException e) {
+			return new UserDetailResult(name, e);
+		} catch (RuntimeException e) {
+			return new UserDetailResult(name, e);
+		}
+	}
+	
+	/* Returns null if the user doesn't exist or isn't visible. */
+	private static UserDetail fetchOneUserDetail(
+			final String name,
+			final AuthToken token,
+			final AuthConfig config)
+			throws IOException, AuthException {
+		URL query = null;
+		try {
+			query = new URL(config.getGlobusGroupMembersURL().toString()
+					+ name);
+		} catch (MalformedURLException mue) {
+			throw new RuntimeException("globus url " +
+					config.getGlobusGroupMembersURL() + 
+					" magically has illegal characters", mue);
+		}
+		final Map<String, String> headers = new HashMap<String, String>();
+		headers.put("X-Globus-Goauthtoken", token.toString());
+		final AuthResponse resp = config.getTransport().send(
+				new AuthRequest("GET", query, headers, null));
+		final GlobusMember member;
+		try {
+			int responseCode = resp.getCode();
 			// 200 = found, 403 = private, 404 = doesn't exist
 			if (responseCode != 200 && responseCode != 403
 					&& responseCode != 404) {
-				conn.disconnect();
 				throw new AuthException(
 						"User detail retrieval failed for user " +
 						name + "! Server responded with code " + responseCode +
-						" " + conn.getResponseMessage());
+						" " + resp.getMessage());
 			}
-			if (responseCode == 200) { //otherwise skip & return null for user
-				/** Encoding the HTTP response into JSON format */
-				final BufferedReader br = new BufferedReader(
-						new InputStreamReader(conn.getInputStream()));
-				String responseText = readFromReaderAndClose(br);
-
-				final Map<String, Object> userdetail;
-				try {
-					@SuppressWarnings("unchecked")
-					final Map<String, Object> foo = new ObjectMapper()
-						.readValue(responseText, Map.class);
-					userdetail = foo;
-				} catch (Exception ex) {
-					throw new AuthException(ex.getMessage(), ex, responseText);
-				}
-				final String user = (String) userdetail.get("username");
-				USER_CACHE.putString(user);
-				result.put(user, new UserDetail(user,
-						(String) userdetail.get("email"),
-						(String) userdetail.get("name")));
+			if (responseCode != 200) { // return null for user
+				return null;
 			}
+			member = JsonResponses.read(JsonResponses.GLOBUS_MEMBER,
+					resp.getBody(), config.getMaxResponseSize());
+		} finally {
+			resp.close();
 		}
-		return result;
-	}
-	
-	private static String readFromReaderAndClose(BufferedReader br)
-			throws IOException {
-		StringBuilder ret = new StringBuilder();
-		while (true) {
-			String l = br.readLine();
-			if (l == null)
-				break;
-			ret.append(l).append('\n');
+		if (member == null) {
+			throw new AuthException("User detail retrieval failed for user " +
+					name + "! Server returned a null object");
 		}
-		br.close();
-		return ret.toString();
+		USER_CACHE.putString(member.getUserName());
+		return member.toUserDetail();
 	}
 	
 	/**
@@ -324,56 +758,39 @@ public class AuthService {
 
 		//TODO add retries
 		try {
-			// Build the connection project and set it up.
-			final HttpURLConnection conn = (HttpURLConnection)
-					config.getAuthLoginURL().openConnection();
-			conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-			conn.setRequestProperty("Content-Length", String.valueOf(dataStr.getBytes().length));
-			conn.setRequestProperty("Content-Language", "en-US");
-			conn.setRequestMethod("POST");
-			conn.setDoOutput(true);
-			conn.setDoInput(true);
-			conn.setUseCaches(false);
-			
-			// Write out the POST data.
-			final DataOutputStream writer = new DataOutputStream(conn.getOutputStream());
-			writer.writeBytes(dataStr);
-			writer.flush();
-			writer.close();
-			
-			// If we don't have a happy response code, throw an exception.
-			int responseCode = conn.getResponseCode();
-			if (responseCode != 200) {
-				conn.disconnect();
-				if (responseCode < 500) {
-					throw new AuthException("Login failed! Server responded with code " + responseCode + " " + conn.getResponseMessage());
-				} else {
-					throw new IOException("Server comms failed. Code: " + responseCode + " " + conn.getResponseMessage());
-				}
-			}
-
-			/** Encoding the HTTP response into JSON format */
-			final BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-			String responseText = readFromReaderAndClose(br);
-			
-			final AuthUser user;
+			final AuthResponse resp = config.getTransport().send(
+					new AuthRequest("POST", config.getAuthLoginURL(),
+							LOGIN_HEADERS, dataStr.getBytes("UTF-8")));
 			try {
-				user = new ObjectMapper().readValue(responseText, AuthUser.class);
-			} catch (Exception ex) {
-				throw new AuthException(ex.getMessage(), ex, responseText);
-			}
-
-			if (user == null) { // if still null, throw an exception 
-				throw new IOException("Server returned a null object. Code: " + responseCode + " " + conn.getResponseMessage());
-			}
-			if (user.getToken() != null) {
-				user.getToken().setExpiryTime(expiry);
-				TOKEN_CACHE.putValidToken(user.getToken());
+				// If we don't have a happy response code, throw an exception.
+				// Timeouts and rate limiting are server trouble rather than
+				// a verdict on the credentials.
+				int responseCode = resp.getCode();
+				if (responseCode != 200) {
+					if (responseCode == 401 || responseCode == 403) {
+						throw new CredentialsRejectedException("Login failed! Server responded with code " + responseCode + " " + resp.getMessage());
+					} else if (responseCode < 500 && responseCode != 408 &&
+							responseCode != 429) {
+						throw new AuthException("Login failed! Server responded with code " + responseCode + " " + resp.getMessage());
+					} else {
+						throw new IOException("Server comms failed. Code: " + responseCode + " " + resp.getMessage());
+					}
+				}
+	
+				final AuthUser user = JsonResponses.read(JsonResponses.AUTH_USER,
+						resp.getBody(), config.getMaxResponseSize());
+	
+				if (user == null) { // if still null, throw an exception 
+					throw new IOException("Server returned a null object. Code: " + responseCode + " " + resp.getMessage());
+				}
+				if (user.getToken() != null) {
+					user.getToken().setExpiryTime(expiry);
+					TOKEN_CACHE.putValidToken(user.getToken());
+				}
+				return user;
+			} finally {
+				resp.close();
 			}
-
-			br.close();
-			conn.disconnect();
-			return user;
 		}
 		catch (UnsupportedEncodingException e) {
 			throw new RuntimeException("An unexpected encoding exception occurred: " + e.getLocalizedMessage());
@@ -383,6 +800,59 @@ public class AuthService {
 		}
 	}
 	
+	/* Calls fetchUser, but if another thread is already making the same
+	 * request waits for and returns that thread's result instead. Since
+	 * tokens are in the request, this coalesces concurrent validations of
+	 * the same token. Note that the returned user may be shared between
+	 * threads.
+	 */
+	private static AuthUser fetchUserCoalesced(
+			final String dataStr,
+			final long expiry,
+			final AuthConfig config)
+			throws AuthException, IOException {
+		return FETCHES.execute(new FetchKey(dataStr, expiry, config),
+				new SingleFlight.Call<AuthUser>() {
+					
+					@Override
+					public AuthUser call() throws AuthException, IOException {
+						return fetchUser(dataStr, expiry, config);
+					}
+				});
+	}
+	
+	private static class FetchKey {
+		
+		final private String dataStr;
+		final private long expiry;
+		final private AuthConfig config;
+		
+		FetchKey(final String dataStr, final long expiry,
+				final AuthConfig config) {
+			this.dataStr = dataStr;
+			this.expiry = expiry;
+			this.config = config;
+		}
+		
+		@Override
+		public int hashCode() {
+			return dataStr.hashCode() * 31 + (int) (expiry ^ (expiry >>> 32));
+		}
+		
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof FetchKey)) {
+				return false;
+			}
+			final FetchKey other = (FetchKey) obj;
+			return expiry == other.expiry && config == other.config &&
+					dataStr.equals(other.dataStr);
+		}
+	}
+	
 	/**
 	 * Given a String representation of an auth token, this validates it against its source in Globus Online.
 	 * 
@@ -393,7 +863,7 @@ public class AuthService {
 	 */
 	public static boolean validateToken(String tokenStr)
 			throws TokenFormatException, TokenExpiredException, IOException {
-		AuthToken token = new AuthToken(tokenStr);
+		AuthToken token = AuthToken.parse(tokenStr);
 		return validateToken(token);
 	}
 	
@@ -413,28 +883,232 @@ public class AuthService {
 
 	static boolean validateToken(AuthToken token, AuthConfig config)
 			throws TokenExpiredException, IOException {
+		return validateTokenWithResult(token, config).isValid();
+	}
+	
+	/**
+	 * Validates a KBase Auth token as {@link #validateToken(AuthToken)}
+	 * does, and also reports whether the answer is degraded, i.e. based on a
+	 * previous verification because the auth server could not be reached.
+	 * See {@link AuthConfig#withStaleWhileErrorWindow(int)}.
+	 *
+	 * @param token the token to validate
+	 * @return the result of the validation.
+	 * @throws TokenExpiredException if the token is expired (it might be otherwise valid)
+	 * @throws IOException if there's a problem communicating with the back end validator.
+	 */
+	public static ValidationResult validateTokenWithResult(AuthToken token)
+			throws TokenExpiredException, IOException {
+		return validateTokenWithResult(token, DEFAULT_CONFIG);
+	}
+	
+	static ValidationResult validateTokenWithResult(
+			AuthToken token,
+			AuthConfig config)
+			throws TokenExpiredException, IOException {
+		final Boolean cached = validateTokenFromCache(token, config);
+		if (cached != null) {
+			return ValidationResult.of(cached);
+		}
+		return validateTokenWithServer(token, config);
+	}
+	
+	/* Validates a token using only the caches. Returns null if the token
+	 * must be checked with the auth server.
+	 */
+	static Boolean validateTokenFromCache(AuthToken token, AuthConfig config)
+			throws TokenExpiredException {
 		// If it's expired, then it's invalid, and we throw an exception
 		if(token.isExpired()) {
 			throw new TokenExpiredException("token expired");
 		}
 		
-		// If it's in the cache, then it's valid.
-		if(TOKEN_CACHE.hasToken(token)) {
-			return true;
+		// If it's in the cache and not too stale, then it's valid.
+		// Stale entries may still be used if the server is unavailable.
+		final long verified = TOKEN_CACHE.getVerifiedTime(token);
+		if (verified != DigestTable.ABSENT) {
+			final long maxStale = config.getTokenCacheMaxStaleness() * 1000L;
+			if (maxStale == 0) {
+				return true;
+			}
+			final long age = Clock.system().millis() - verified;
+			if (age <= maxStale) {
+				if (age > maxStale / 4 * 3) {
+					revalidate(token, config);
+				}
+				return true;
+			}
 		}
-
-		// Otherwise, fetch the user from the Auth Service.
+		// If it was recently rejected, it's still invalid.
+		if (config.getRejectedTokenCache().hasToken(token)) {
+			return false;
+		}
+		return null;
+	}
+	
+	/* Validates a token with the auth server, bypassing the caches, and
+	 * records the result in the caches. If the token's signature can be
+	 * verified locally the server isn't contacted.
+	 */
+	static ValidationResult validateTokenWithServer(
+			AuthToken token,
+			AuthConfig config)
+			throws TokenExpiredException, IOException {
+		final SigningKeyCache keys = config.getSigningKeyCache();
+		if (keys != null && keys.verify(token)) {
+			LOCAL_VALIDATIONS.incrementAndGet();
+			putVerifiedToken(token, config);
+			return ValidationResult.VALID;
+		}
+		// Fetch the user from the Auth Service.
 		// If the user is there, then cache this token and return that it's valid.
 		try {
 			// if we get a user back (and not an exception), then the token is valid.
 			String dataStr = "token=" + token.toString() + "&fields=user_id";
-			fetchUser(dataStr, token.getExpiryTime(), config);
-			TOKEN_CACHE.putValidToken(token);
-			return true;
+			fetchUserCoalesced(dataStr, token.getExpiryTime(), config);
+			putVerifiedToken(token, config);
+			return ValidationResult.VALID;
+		} catch (CredentialsRejectedException e) {
+			// the server rejected the token, so it's invalid.
+			rejectToken(token, config);
+			return ValidationResult.INVALID;
 		} catch (AuthException e) {
-			// if we get an exception, then an authentication error happened - that's an invalid token.
+			// some other failure, e.g. an undecodable response. The token
+			// isn't accepted, but isn't remembered as rejected either.
+			return ValidationResult.INVALID;
+		} catch (IOException e) {
+			if (isRecentlyVerified(token, config)) {
+				DEGRADED_VALIDATIONS.incrementAndGet();
+				return ValidationResult.DEGRADED;
+			}
+			throw e;
+		}
+	}
+	
+	private static void putVerifiedToken(
+			final AuthToken token,
+			final AuthConfig config)
+			throws TokenExpiredException {
+		TOKEN_CACHE.putValidToken(token);
+		if (config.getStaleWhileErrorWindow() > 0) {
+			verifiedTokensUsed = true;
+			final TokenDigest d = TokenDigest.of(token);
+			VerifiedTokens.TABLE.put(d.hi, d.lo, Clock.system().millis());
+		}
+	}
+	
+	/* Drops a token the auth server rejected, i.e. answered with a 401 or
+	 * 403, from the token cache, the configuration's profile cache and the
+	 * verification history, so it can't be accepted when the server is
+	 * down, and remembers that it was rejected. Other failures, such as
+	 * rate limiting or an undecodable response, don't say the token is
+	 * invalid and aren't remembered.
+	 */
+	private static void rejectToken(
+			final AuthToken token,
+			final AuthConfig config) {
+		TOKEN_CACHE.removeToken(token);
+		if (config.getProfileCacheExpiry() > 0) {
+			config.getProfileCache().remove(token);
+		}
+		if (verifiedTokensUsed) {
+			final TokenDigest d = TokenDigest.of(token);
+			VerifiedTokens.TABLE.remove(d.hi, d.lo);
+		}
+		config.getRejectedTokenCache().putRejectedToken(token);
+	}
+	
+	/* Returns true if a token was verified within the configuration's stale
+	 * while error window, based on the token cache's verification time or,
+	 * if the token has since been dropped from the cache, the verification
+	 * history. A degraded answer does not update either time, so the window
+	 * is measured from the last successful verification.
+	 */
+	private static boolean isRecentlyVerified(
+			final AuthToken token,
+			final AuthConfig config)
+			throws TokenExpiredException {
+		final long window = config.getStaleWhileErrorWindow() * 1000L;
+		if (window == 0) {
 			return false;
 		}
+		final long cacheVerified = TOKEN_CACHE.getVerifiedTime(token);
+		final TokenDigest d = TokenDigest.of(token);
+		final long verified = Math.max(cacheVerified,
+				VerifiedTokens.TABLE.get(d.hi, d.lo));
+		return verified != DigestTable.ABSENT &&
+				Clock.system().millis() - verified <= window;
+	}
+
+	/* Checks a cached token against the server in the background, refreshing
+	 * its verification time or removing it from the cache. Errors talking to
+	 * the server leave the cache alone; once the token is too stale the next
+	 * validation will go to the server anyway.
+	 */
+	private static void revalidate(
+			final AuthToken token,
+			final AuthConfig config) {
+		final String key = token.toString();
+		if (REVALIDATING.putIfAbsent(key, Boolean.TRUE) != null) {
+			return;
+		}
+		try {
+			REVALIDATOR.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						fetchUserCoalesced("token=" + key + "&fields=user_id",
+								token.getExpiryTime(), config);
+						putVerifiedToken(token, config);
+					} catch (CredentialsRejectedException e) {
+						rejectToken(token, config);
+					} catch (AuthException e) {
+						// not a verdict on the token, try again next time
+					} catch (IOException e) {
+						// try again next time
+					} catch (RuntimeException e) {
+						// nowhere to report it
+					} finally {
+						REVALIDATING.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			REVALIDATING.remove(key);
+		}
+	}
+	
+	/**
+	 * Returns the number of times a token was reported as valid based on a
+	 * previous verification because the authorization server could not be
+	 * reached. See {@link AuthConfig#withStaleWhileErrorWindow(int)}. The
+	 * count is shared by all configurations, as is the token cache.
+	 * @return the number of degraded validations.
+	 */
+	public static long getDegradedValidationCount() {
+		return DEGRADED_VALIDATIONS.get();
+	}
+	
+	/**
+	 * Returns the number of times a token was validated by verifying its
+	 * signature locally rather than asking the authorization server. See
+	 * {@link AuthConfig#withTrustedSigningSubjects(List)}. The count is
+	 * shared by all configurations.
+	 * @return the number of local validations.
+	 */
+	public static long getLocalValidationCount() {
+		return LOCAL_VALIDATIONS.get();
+	}
+	
+	/**
+	 * Returns the cache of tokens that the authorization server rejected
+	 * when validating tokens with the default configuration. The cache
+	 * records how often it prevented a network query.
+	 * @return the rejected token cache.
+	 */
+	public static RejectedTokenCache getRejectedTokenCache() {
+		return DEFAULT_CONFIG.getRejectedTokenCache();
 	}
 
 	/**
@@ -488,27 +1162,29 @@ public class AuthService {
 	 * @param url the new URL for the service
 	 * @throws IOException if something goes wrong with the connection test.
 	 */
-	static void checkServiceUrl(URL url) throws IOException {
-
-		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-		int response = conn.getResponseCode();
+	static void checkServiceUrl(URL url, AuthTransport transport)
+			throws IOException {
 
-		// we want to check for a 401 error with this text (or something like it):
-		// {"user_id": null, "error_msg": "Must specify user_id and password in POST message body"}
-		if (response == 401) {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
-			String line;
-			String result = "";
-			while ((line = reader.readLine()) != null) {
-				result += line;
-			}
-			reader.close();
-			conn.disconnect();
+		final AuthResponse resp = transport.send(
+				new AuthRequest("GET", url, null, null));
+		try {
+			// we want to check for a 401 error with this text (or something like it):
+			// {"user_id": null, "error_msg": "Must specify user_id and password in POST message body"}
+			if (resp.getCode() == 401) {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(resp.getBody()));
+				String line;
+				String result = "";
+				while ((line = reader.readLine()) != null) {
+					result += line;
+				}
+				reader.close();
 
-			if (!result.contains("\"user_id\": null")) {
-				throw new IOException("Auth service URL invalid");
+				if (!result.contains("\"user_id\": null")) {
+					throw new IOException("Auth service URL invalid");
+				}
 			}
+		} finally {
+			resp.close();
 		}
 	}
 }
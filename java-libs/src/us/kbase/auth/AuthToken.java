@@ -1,9 +1,7 @@
 package us.kbase.auth;
 
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
@@ -22,17 +20,69 @@ public class AuthToken {
 	 * The default token expiration time in seconds.
 	 */
 	public static final long DEFAULT_EXPIRES = 60 * 24 * 60 * 60;
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+	private static final int PARSED_CACHE_SIZE = 1000;
+	private static final int PARSED_CACHE_MAX_SIZE = 2000;
+	// Keyed by the raw token string, which the cached token holds anyway.
+	// Retains up to PARSED_CACHE_MAX_SIZE token strings, see parse().
+	private static final ConcurrentLruCache<String, AuthToken> PARSED =
+			new ConcurrentLruCache<String, AuthToken>(
+					PARSED_CACHE_SIZE, PARSED_CACHE_MAX_SIZE);
+	// indexes of the fields in the offset table
+	private static final int UN = 0;
+	private static final int TOKEN_ID = 1;
+	private static final int CLIENT_ID = 2;
+	private static final int TOKEN_TYPE = 3;
+	private static final int SIGNING_SUBJECT = 4;
+	private static final int SIG = 5;
+	private static final int FIELDS = 6;
+	// not stored in the offset table, only used to find repeated fields
+	private static final int EXPIRY = 6;
 	final private String tokenStr;
-	final private String userName;
-	final private String tokenId;
-	final private String clientId;
-	final private Date issued;
-	final private String tokenType;
-	final private String signingSubject;
-	final private String signature;
-	final private String tokenData;
+	/* The start and end of each field's value in the token string, or -1 if
+	 * the field is absent. Values are only copied out of the token string
+	 * when requested, so a token takes little more memory than its string.
+	 */
+	final private int[] offsets = new int[FIELDS * 2];
+	// the end of the token data, i.e. the start of '|sig='
+	final private int sigPos;
+	final private long issued;
 	@JsonIgnore
 	private long expireTime = DEFAULT_EXPIRES;
+	// when the token expires, in milliseconds since the epoch
+	@JsonIgnore
+	private long expires;
+	
+	/**
+	 * Returns an AuthToken with the default lifetime for a token string.
+	 * 
+	 * Recently parsed tokens are cached by their token string, so parsing a
+	 * token string that was parsed recently returns the same AuthToken
+	 * instance rather than parsing the string again. Use this method rather
+	 * than the constructor for token strings that are presented repeatedly,
+	 * e.g. in request headers.
+	 * 
+	 * Note that the cache keeps up to 2000 of the most recently parsed token
+	 * strings, which are bearer credentials, in memory until they are
+	 * evicted by newer tokens, whether or not the tokens are valid or have
+	 * expired. Use the constructor for tokens that should not be kept after
+	 * they are used.
+	 * @param token the token string.
+	 * @return the token.
+	 * @throws TokenFormatException if the token could not be parsed.
+	 */
+	public static AuthToken parse(final String token)
+			throws TokenFormatException {
+		if (token == null) {
+			throw new NullPointerException("token cannot be null");
+		}
+		AuthToken t = PARSED.get(token);
+		if (t == null) {
+			t = new AuthToken(token);
+			PARSED.put(token, t);
+		}
+		return t;
+	}
 	
 	/**
 	 * The standard constructor for an AuthToken takes a token string and parses it into
@@ -75,51 +125,171 @@ public class AuthToken {
 		 */
 		setExpiryTime(expiry);
 		this.tokenStr = token;
-		Map<String, String> parsed = new HashMap<String, String>();
-		/**
+		/*
 		 * Expect the token to be of the following format:
 		 * "key1=value1|key2=value2|key3=value3|..."
 		 * So, '|' and '=' are expected to be only present as delimiters.
+		 * 
+		 * The fields are found by scanning the string once rather than
+		 * splitting it, since a token is parsed for every request. Empty
+		 * fields at the end of the token and '='s at the end of a field are
+		 * ignored, as String.split() would.
+		 * 
+		 * Only the text before the signature is signed, so the signature
+		 * must be the last field and no field may appear twice. Otherwise
+		 * fields after the signature could replace signed fields.
 		 */
-		String[] tokenFields = token.split("[|]");
-		for (String field : tokenFields) {
-			String[] keyValuePair = field.split("[=]");
-			
+		if (token.isEmpty()) {
+			throw new TokenFormatException(
+					"Auth token is in the incorrect format, near ''");
+		}
+		int end = token.length();
+		while (end > 0 && token.charAt(end - 1) == '|') {
+			end--;
+		}
+		Arrays.fill(offsets, -1);
+		int expStart = -1;
+		int expEnd = -1;
+		int seen = 0;
+		int lastStart = 0;
+		int start = 0;
+		while (start < end) {
+			int fieldEnd = token.indexOf('|', start);
+			if (fieldEnd == -1 || fieldEnd > end) {
+				fieldEnd = end;
+			}
+			int valueEnd = fieldEnd;
+			while (valueEnd > start && token.charAt(valueEnd - 1) == '=') {
+				valueEnd--;
+			}
+			final int eq = token.indexOf('=', start);
+			final int eq2 = eq == -1 ? -1 : token.indexOf('=', eq + 1);
 			// Should be exactly 2 elements here. If not == bad news.
-			if (keyValuePair.length != 2) {
-				throw new TokenFormatException("Auth token is in the incorrect format, near '" + field + "'");
+			if (eq == -1 || eq >= valueEnd || (eq2 != -1 && eq2 < valueEnd)) {
+				throw new TokenFormatException(
+						"Auth token is in the incorrect format, near '" +
+						token.substring(start, fieldEnd) + "'");
+			}
+			final int keyLen = eq - start;
+			int field = -1;
+			if (token.startsWith("un", start) && keyLen == 2) {
+				field = UN;
+			} else if (token.startsWith("tokenid", start) && keyLen == 7) {
+				field = TOKEN_ID;
+			} else if (token.startsWith("expiry", start) && keyLen == 6) {
+				field = EXPIRY;
+				expStart = eq + 1;
+				expEnd = valueEnd;
+			} else if (token.startsWith("client_id", start) && keyLen == 9) {
+				field = CLIENT_ID;
+			} else if (token.startsWith("token_type", start) &&
+					keyLen == 10) {
+				field = TOKEN_TYPE;
+			} else if (token.startsWith("SigningSubject", start) &&
+					keyLen == 14) {
+				field = SIGNING_SUBJECT;
+			} else if (token.startsWith("sig", start) && keyLen == 3) {
+				field = SIG;
 			}
-			parsed.put(keyValuePair[0], keyValuePair[1]);
+			if (field != -1) {
+				if ((seen & 1 << field) != 0) {
+					throw new TokenFormatException(
+							"Auth token is in the incorrect format - repeated field '" +
+							token.substring(start, eq) + "'");
+				}
+				seen |= 1 << field;
+			}
+			if (field != -1 && field != EXPIRY) {
+				offsets[field * 2] = eq + 1;
+				offsets[field * 2 + 1] = valueEnd;
+			}
+			lastStart = start;
+			start = fieldEnd + 1;
 		}
 
 		// Everything up to '|sig=' is the token data, so grab that.
-		int sigPos = token.indexOf("|sig=");
+		sigPos = token.indexOf("|sig=");
 
 		// If we can't find that fragment, or it's at the end of the string, throw an error - there's no sig present!
 		if (sigPos == -1 || token.length() < sigPos+5) {
 			throw new TokenFormatException("Auth token is in the incorrect format - might be missing the signature?");
 		}
+		if (lastStart != sigPos + 1) {
+			throw new TokenFormatException(
+					"Auth token is in the incorrect format - the signature must be the last field");
+		}
 
-		userName = parsed.get("un");
-		tokenId = parsed.get("tokenid");
+		if (expStart == -1) {
+			throw new TokenFormatException(
+					"Auth token is in the incorrect format - missing the expiry time");
+		}
+		final long expirySec;
+		try {
+			expirySec = Long.parseLong(token.substring(expStart, expEnd));
+		} catch (NumberFormatException e) {
+			throw new TokenFormatException(
+					"Auth token is in the incorrect format, near 'expiry=" +
+					token.substring(expStart, expEnd) + "'");
+		}
 		// Globus expiry is currently set to issue date (which is not stored in 
 		// token) + 1 year. Will need to change this code when the authservice
 		// provides the issue date.
-		final Date exp = new Date(Long.parseLong(parsed.get("expiry")) * 1000);
-		final Calendar cal = Calendar.getInstance();
-		cal.setTime(exp);
-		cal.add(Calendar.YEAR, -1);
-		cal.add(Calendar.DAY_OF_YEAR, 1);
-		issued = cal.getTime();
-		clientId = parsed.get("client_id");
-		tokenType = parsed.get("token_type");
-		signingSubject = parsed.get("SigningSubject");
-		signature = parsed.get("sig");
-		tokenData = token.substring(0, sigPos);
+		issued = issueDate(expirySec);
+		expires = expiresAt(issued, expireTime);
+	}
+	
+	private String field(final int field) {
+		final int start = offsets[field * 2];
+		return start == -1 ? null :
+			tokenStr.substring(start, offsets[field * 2 + 1]);
+	}
+	
+	/* Returns the time one year minus one day before the expiry time, in
+	 * milliseconds since the epoch. The date is calculated in UTC; a Feb 29
+	 * expiry date maps to Feb 28 of the previous year.
+	 */
+	private static long issueDate(final long expirySec) {
+		final long days = floorDiv(expirySec, SECONDS_PER_DAY);
+		final long secOfDay = expirySec - days * SECONDS_PER_DAY;
+		// civil date from days since the epoch, see
+		// http://howardhinnant.github.io/date_algorithms.html
+		final long z = days + 719468;
+		final long era = floorDiv(z, 146097);
+		final long doe = z - era * 146097;
+		final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		final long mp = (5 * doy + 2) / 153;
+		long d = doy - (153 * mp + 2) / 5 + 1;
+		final long m = mp < 10 ? mp + 3 : mp - 9;
+		final long y = yoe + era * 400 + (m <= 2 ? 1 : 0) - 1;
+		if (m == 2 && d == 29 && !isLeapYear(y)) {
+			d = 28;
+		}
+		final long issueDays = daysFromCivil(y, m, d) + 1;
+		return (issueDays * SECONDS_PER_DAY + secOfDay) * 1000;
+	}
+	
+	private static long floorDiv(final long x, final long y) {
+		final long q = x / y;
+		return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+	}
+	
+	private static boolean isLeapYear(final long y) {
+		return y % 4 == 0 && (y % 100 != 0 || y % 400 == 0);
+	}
+	
+	private static long daysFromCivil(long y, final long m, final long d) {
+		y -= m <= 2 ? 1 : 0;
+		final long era = floorDiv(y, 400);
+		final long yoe = y - era * 400;
+		final long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1;
+		final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
 	}
 	
 	/**
-	 * Set the lifetime of this token in seconds.
+	 * Set the lifetime of this token in seconds. Must not be called on
+	 * tokens returned by {@link #parse(String)}, which are shared.
 	 * @param seconds the lifetime of this token.
 	 */
 	@JsonIgnore
@@ -128,6 +298,16 @@ public class AuthToken {
 			throw new IllegalArgumentException("seconds must be positive");
 		}
 		expireTime = seconds;
+		expires = expiresAt(issued, seconds);
+	}
+	
+	/* Saturates rather than overflowing for very long lifetimes. */
+	private static long expiresAt(final long issued, final long seconds) {
+		if (seconds > Long.MAX_VALUE / 1000 ||
+				issued > Long.MAX_VALUE - seconds * 1000) {
+			return Long.MAX_VALUE;
+		}
+		return issued + seconds * 1000;
 	}
 	
 	/**
@@ -144,7 +324,7 @@ public class AuthToken {
 	 * @return the user name
 	 */
 	public String getUserName() {
-		return userName;
+		return field(UN);
 	}
 	
 	/**
@@ -152,7 +332,7 @@ public class AuthToken {
 	 * @return the token ID
 	 */
 	public String getTokenId() {
-		return tokenId;
+		return field(TOKEN_ID);
 	}
 	
 	/**
@@ -160,7 +340,7 @@ public class AuthToken {
 	 * @return the client's ID
 	 */
 	public String getClientId() {
-		return clientId;
+		return field(CLIENT_ID);
 	}
 	
 	/**
@@ -168,7 +348,7 @@ public class AuthToken {
 	 * @return the issue date
 	 */
 	public Date getIssueDate() {
-		return issued;
+		return new Date(issued);
 	}
 	
 	/**
@@ -176,7 +356,7 @@ public class AuthToken {
 	 * @return the token type
 	 */
 	public String getTokenType() {
-		return tokenType;
+		return field(TOKEN_TYPE);
 	}
 	
 	/**
@@ -184,7 +364,7 @@ public class AuthToken {
 	 * @return the signing subject
 	 */
 	public String getSigningSubject() {
-		return signingSubject;
+		return field(SIGNING_SUBJECT);
 	}
 	
 	/**
@@ -192,7 +372,7 @@ public class AuthToken {
 	 * @return the signature
 	 */
 	public String getSignature() {
-		return signature;
+		return field(SIG);
 	}
 	
 	/**
@@ -200,7 +380,16 @@ public class AuthToken {
 	 * @return the token data
 	 */
 	public String getTokenData() {
-		return tokenData;
+		return tokenStr.substring(0, sigPos);
+	}
+	
+	/**
+	 * Get the time after which this token is expired.
+	 * @return the expiry time in milliseconds since the epoch.
+	 */
+	@JsonIgnore
+	long getExpiresAt() {
+		return expires;
 	}
 	
 	/**
@@ -209,12 +398,17 @@ public class AuthToken {
 	 * otherwise.
 	 */
 	public boolean isExpired() {
-//		 System.out.println("Expire time: " + expireTime);
-//		 System.out.println("Issued time: " + issued.getTime());
-//		 System.out.println("Current time: " + new Date().getTime());
-//		 System.out.println("Issued+expired: " + (issued.getTime() + (expireTime * 1000)));
-
-		return new Date().getTime() - issued.getTime() > expireTime * 1000;
+		return isExpired(Clock.wall());
+	}
+	
+	/**
+	 * Tests whether this token has expired at the time given by a clock.
+	 * @param clock the clock.
+	 * @return <code>true</code> if this token is expired, <code>false</code>
+	 * otherwise.
+	 */
+	boolean isExpired(final Clock clock) {
+		return clock.millis() > expires;
 	}
 	
 	/**
@@ -0,0 +1,25 @@
+package us.kbase.auth;
+
+import java.io.IOException;
+
+/**
+ * Sends HTTP requests to the KBase auth and Globus servers on behalf of the
+ * auth client. The transport used by a client is set with
+ * {@link AuthConfig#withTransport(AuthTransport)}; by default the client
+ * uses an {@link HttpURLConnectionTransport}. Tests may provide an in memory
+ * transport to avoid network access.
+ *
+ * Implementations must be thread safe.
+ */
+public interface AuthTransport {
+
+	/**
+	 * Send a request and return the response once the status line and
+	 * headers have been received. The caller must close the response.
+	 * @param request the request to send.
+	 * @return the response.
+	 * @throws IOException if the request could not be sent or no response
+	 * was received.
+	 */
+	AuthResponse send(AuthRequest request) throws IOException;
+}
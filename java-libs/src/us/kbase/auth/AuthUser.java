@@ -1,5 +1,7 @@
 package us.kbase.auth;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -31,6 +33,51 @@ public class AuthUser {
 	private boolean systemAdmin = false;
 
 	private AuthUser() { }
+	
+	/* Returns a copy of this user with the fields in the mask replaced by
+	 * those of the other user. Groups taken from the other user are copied
+	 * into a list that can't be modified.
+	 */
+	AuthUser merge(final AuthUser other, final int fields) {
+		final AuthUser u = new AuthUser();
+		u.userId = pick(fields, AuthUserField.USER_ID) ?
+				other.userId : userId;
+		u.fullName = pick(fields, AuthUserField.FULL_NAME) ?
+				other.fullName : fullName;
+		u.email = pick(fields, AuthUserField.EMAIL) ? other.email : email;
+		if (!pick(fields, AuthUserField.GROUPS)) {
+			u.groups = groups;
+		} else if (other.groups != null) {
+			u.groups = Collections.unmodifiableList(
+					new ArrayList<String>(other.groups));
+		}
+		u.kbaseSession = pick(fields, AuthUserField.SESSION_ID) ?
+				other.kbaseSession : kbaseSession;
+		u.token = pick(fields, AuthUserField.TOKEN) ? other.token : token;
+		u.emailValidated = pick(fields, AuthUserField.EMAIL_VALIDATED) ?
+				other.emailValidated : emailValidated;
+		u.optIn = pick(fields, AuthUserField.OPT_IN) ? other.optIn : optIn;
+		u.systemAdmin = pick(fields, AuthUserField.SYSTEM_ADMIN) ?
+				other.systemAdmin : systemAdmin;
+		u.errorMessage = errorMessage;
+		return u;
+	}
+	
+	/* Returns a copy of this user with a different token. */
+	AuthUser withToken(final AuthToken token) {
+		final AuthUser u = merge(this, 0);
+		u.token = token;
+		return u;
+	}
+	
+	/* Returns an empty user, to merge fetched fields into. */
+	static AuthUser empty() {
+		return new AuthUser();
+	}
+	
+	private static boolean pick(final int fields, final AuthUserField f) {
+		return (fields & f.bit()) != 0;
+	}
 
 	@JsonProperty("opt_in")
 	public boolean hasOptIn() {
@@ -0,0 +1,74 @@
+package us.kbase.auth;
+
+import java.util.Set;
+
+/**
+ * The fields of an {@link AuthUser} that may be requested from the KBase
+ * authorization server.
+ */
+public enum AuthUserField {
+
+	/** The user's user name. This field is always requested. */
+	USER_ID("user_id"),
+	/** The user's full name. */
+	FULL_NAME("name"),
+	/** The user's email address. */
+	EMAIL("email"),
+	/** The groups the user belongs to. */
+	GROUPS("groups"),
+	/** The user's KBase session ID. */
+	SESSION_ID("kbase_sessionid"),
+	/** The user's token. */
+	TOKEN("token"),
+	/** Whether the user's email address has been validated. */
+	EMAIL_VALIDATED("verified"),
+	/** Whether the user has opted in to communications from KBase. */
+	OPT_IN("opt_in"),
+	/** Whether the user is a KBase system administrator. */
+	SYSTEM_ADMIN("system_admin");
+
+	/** A mask of all the fields. */
+	final static int ALL = (1 << values().length) - 1;
+
+	final private String fieldName;
+
+	private AuthUserField(final String fieldName) {
+		this.fieldName = fieldName;
+	}
+
+	/**
+	 * Returns the name of the field in requests to the authorization server.
+	 * @return the field name.
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	/* Returns the bit for this field in a field mask. */
+	int bit() {
+		return 1 << ordinal();
+	}
+
+	/* Returns a mask of the fields, always including USER_ID. */
+	static int mask(final Set<AuthUserField> fields) {
+		int mask = USER_ID.bit();
+		for (final AuthUserField f: fields) {
+			mask |= f.bit();
+		}
+		return mask;
+	}
+
+	/* Returns the comma separated names of the fields in a mask. */
+	static String fieldNames(final int mask) {
+		final StringBuilder sb = new StringBuilder();
+		for (final AuthUserField f: values()) {
+			if ((mask & f.bit()) != 0) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(f.fieldName);
+			}
+		}
+		return sb.toString();
+	}
+}
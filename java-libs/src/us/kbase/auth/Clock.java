@@ -0,0 +1,97 @@
+package us.kbase.auth;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A source of the current time for expiry checks.
+ *
+ * The caches in this package read the time from a clock so that tests can
+ * substitute a clock they control, and check expiry without sleeping.
+ *
+ * The {@link #system() system clock} is coarse grained and monotonic, and
+ * is only used to measure durations, such as the age of a cache entry or the
+ * time until a token is refreshed. A background thread shared by all users
+ * of the clock updates the time every {@link #TICK_MSEC} milliseconds, so
+ * reading it costs no more than reading a volatile field. The time is
+ * measured with {@link System#nanoTime()} from the wall clock time when the
+ * clock started, so it doesn't jump when the wall clock is adjusted. It is
+ * not corrected afterwards, so it drifts from the wall clock, for example
+ * while the machine is suspended, and it falls behind if the background
+ * thread is delayed.
+ *
+ * Expiry times set by the token issuer are wall clock times, so they are
+ * checked against the {@link #wall() wall clock}.
+ *
+ * Implementations must be thread safe.
+ */
+public abstract class Clock {
+
+	/**
+	 * The interval at which the system clock is updated, in milliseconds.
+	 */
+	final public static long TICK_MSEC = 10;
+
+	/**
+	 * Returns the current time.
+	 * @return the current time in milliseconds since the epoch.
+	 */
+	public abstract long millis();
+
+	/**
+	 * Returns the shared system clock.
+	 * @return the system clock.
+	 */
+	public static Clock system() {
+		return SystemClock.INSTANCE;
+	}
+
+	/**
+	 * Returns the wall clock, which reads {@link System#currentTimeMillis()}.
+	 * @return the wall clock.
+	 */
+	public static Clock wall() {
+		return WallClock.INSTANCE;
+	}
+
+	private static final class WallClock extends Clock {
+
+		final private static WallClock INSTANCE = new WallClock();
+
+		@Override
+		public long millis() {
+			return System.currentTimeMillis();
+		}
+	}
+
+	private static final class SystemClock extends Clock
+			implements Runnable {
+
+		final private static SystemClock INSTANCE = new SystemClock();
+
+		final private long startMillis = System.currentTimeMillis();
+		final private long startNanos = System.nanoTime();
+		private volatile long now;
+
+		private SystemClock() {
+			run();
+			final ScheduledThreadPoolExecutor ticker =
+					new ScheduledThreadPoolExecutor(1,
+							new DaemonThreadFactory("kbase-auth-clock"));
+			ticker.scheduleAtFixedRate(this, TICK_MSEC, TICK_MSEC,
+					TimeUnit.MILLISECONDS);
+		}
+
+		// reads up to a tick ahead while the ticker keeps up
+		@Override
+		public void run() {
+			now = startMillis + TICK_MSEC +
+					(System.nanoTime() - startNanos) / 1000000;
+		}
+
+		@Override
+		public long millis() {
+			return now;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package us.kbase.auth;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A generic, thread-safe cache engine with least recently used eviction.
+ *
+ * The cache is split into segments, each of which is an access ordered map
+ * guarded by its own lock, so there is no lock shared by all threads. When a
+ * segment grows past its share of the maximum size the least recently used
+ * entries in that segment are discarded until the segment is back to its
+ * share of the nominal size. Lookups, insertions and each eviction are
+ * constant time operations.
+ *
+ * Small caches use a single segment and so evict in exact least recently used
+ * order; larger caches evict in least recently used order per segment.
+ *
+ * Optionally entries may expire a fixed time after they were added. Each
+ * segment then also keeps its entries in the order they were added, which
+ * is the order they expire in, and removes expired entries when an entry is
+ * added to it, so they don't take the place of unexpired entries. Expired
+ * entries are never returned.
+ *
+ * This class is thread safe.
+ *
+ * @param <K> the type of the cache keys.
+ * @param <V> the type of the cache values.
+ */
+final class ConcurrentLruCache<K, V> {
+
+	final private static int MAX_SEGMENTS = 16;
+	final private static int MIN_SEGMENT_SIZE = 64;
+
+	final private Segment<K, V>[] segments;
+	final private int segmentMask;
+	private volatile long timeToLive;
+
+	/**
+	 * Create a new cache.
+	 * @param size the nominal size of the cache.
+	 * @param maxsize the maximum size of the cache.
+	 */
+	ConcurrentLruCache(final int size, final int maxsize) {
+		this(size, maxsize, null, 0);
+	}
+
+	/**
+	 * Create a new cache whose entries expire a fixed time after they are
+	 * added.
+	 * @param size the nominal size of the cache.
+	 * @param maxsize the maximum size of the cache.
+	 * @param clock the clock the times entries are added are read from, or
+	 * <code>null</code> if entries don't expire.
+	 * @param timeToLive the time an entry is kept after it is added, in
+	 * milliseconds.
+	 */
+	ConcurrentLruCache(
+			final int size,
+			final int maxsize,
+			final Clock clock,
+			final long timeToLive) {
+		if (size < 1 || maxsize < 1) {
+			throw new IllegalArgumentException("size and maxsize must be > 0");
+		}
+		if (size >= maxsize) {
+			throw new IllegalArgumentException("size must be < maxsize");
+		}
+		int count = 1;
+		while (count < MAX_SEGMENTS &&
+				size / (count * 2) >= MIN_SEGMENT_SIZE) {
+			count *= 2;
+		}
+		final Segment<K, V>[] segs = newSegments(count);
+		for (int i = 0; i < count; i++) {
+			segs[i] = new Segment<K, V>(share(size, count, i),
+					share(maxsize, count, i), clock);
+		}
+		segments = segs;
+		segmentMask = count - 1;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Set the time an entry is kept after it is added. Applies to the
+	 * entries already in the cache.
+	 * @param timeToLive the time to live in milliseconds.
+	 */
+	void setTimeToLive(final long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Segment<K, V>[] newSegments(final int count) {
+		return (Segment<K, V>[]) new Segment<?, ?>[count];
+	}
+
+	private static int share(final int total, final int count, final int i) {
+		return total / count + (i < total % count ? 1 : 0);
+	}
+
+	private Segment<K, V> segmentFor(final Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments[h & segmentMask];
+	}
+
+	/**
+	 * Get a value from the cache and mark it as the most recently used entry.
+	 * @param key the key of the value.
+	 * @return the value, or <code>null</code> if the key is not in the cache
+	 * or has expired.
+	 */
+	V get(final K key) {
+		return segmentFor(key).get(key, timeToLive);
+	}
+
+	/**
+	 * Add a value to the cache or replace an existing value. The entry is
+	 * marked as the most recently used entry.
+	 * @param key the key of the value.
+	 * @param value the value.
+	 */
+	void put(final K key, final V value) {
+		if (value == null) {
+			throw new NullPointerException("value cannot be null");
+		}
+		segmentFor(key).put(key, value, timeToLive);
+	}
+
+	/**
+	 * Remove a value from the cache.
+	 * @param key the key of the value.
+	 * @return the removed value, or <code>null</code> if the key was not in
+	 * the cache.
+	 */
+	V remove(final K key) {
+		return segmentFor(key).remove(key);
+	}
+
+	/**
+	 * Get the number of entries in the cache.
+	 * @return the number of entries.
+	 */
+	int size() {
+		int size = 0;
+		for (final Segment<K, V> s: segments) {
+			size += s.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Get the number of entries in the cache that have expired but have not
+	 * yet been removed. Takes time proportional to the number of expired
+	 * entries.
+	 * @return the number of expired entries.
+	 */
+	int countExpired() {
+		final long timeToLive = this.timeToLive;
+		int count = 0;
+		for (final Segment<K, V> s: segments) {
+			count += s.countExpired(timeToLive);
+		}
+		return count;
+	}
+
+	private static class Segment<K, V> {
+
+		final private int size;
+		final private int maxsize;
+		// null if entries don't expire
+		final private Clock clock;
+		final private LinkedHashMap<K, Entry<K, V>> map;
+		// the sentinel of the list of entries in the order they were added.
+		// oldest.newer is the oldest entry.
+		final private Entry<K, V> oldest = new Entry<K, V>(null);
+
+		Segment(final int size, final int maxsize, final Clock clock) {
+			this.size = size;
+			this.maxsize = maxsize;
+			this.clock = clock;
+			// access ordered, so the eldest entry is the least recently used
+			map = new LinkedHashMap<K, Entry<K, V>>(
+					maxsize * 4 / 3 + 2, 0.75f, true);
+		}
+
+		/* Entries added before the returned time have expired. The time is
+		 * read under the segment lock, so entries are added in time order.
+		 */
+		private long expiredBefore(final long timeToLive) {
+			return clock == null ? Long.MIN_VALUE :
+					clock.millis() - timeToLive;
+		}
+
+		synchronized V get(final K key, final long timeToLive) {
+			final Entry<K, V> e = map.get(key);
+			if (e == null) {
+				return null;
+			}
+			if (e.added < expiredBefore(timeToLive)) {
+				map.remove(key);
+				e.unlink();
+				return null;
+			}
+			return e.value;
+		}
+
+		synchronized void put(
+				final K key,
+				final V value,
+				final long timeToLive) {
+			final long now = clock == null ? 0 : clock.millis();
+			removeExpired(clock == null ? Long.MIN_VALUE : now - timeToLive);
+			Entry<K, V> e = map.get(key);
+			if (e == null) {
+				e = new Entry<K, V>(key);
+				map.put(key, e);
+			} else {
+				e.unlink();
+			}
+			e.value = value;
+			e.added = now;
+			e.linkBefore(oldest);
+			if (map.size() <= maxsize) {
+				return;
+			}
+			final Iterator<Entry<K, V>> i = map.values().iterator();
+			while (map.size() > size) {
+				i.next().unlink();
+				i.remove();
+			}
+		}
+
+		synchronized V remove(final K key) {
+			final Entry<K, V> e = map.remove(key);
+			if (e == null) {
+				return null;
+			}
+			e.unlink();
+			return e.value;
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+
+		synchronized int countExpired(final long timeToLive) {
+			final long expiredBefore = expiredBefore(timeToLive);
+			int count = 0;
+			for (Entry<K, V> e = oldest.newer;
+					e != oldest && e.added < expiredBefore; e = e.newer) {
+				count++;
+			}
+			return count;
+		}
+
+		private void removeExpired(final long expiredBefore) {
+			while (oldest.newer != oldest &&
+					oldest.newer.added < expiredBefore) {
+				final Entry<K, V> e = oldest.newer;
+				map.remove(e.key);
+				e.unlink();
+			}
+		}
+	}
+
+	private static final class Entry<K, V> {
+
+		final private K key;
+		private V value;
+		private long added;
+		private Entry<K, V> older = this;
+		private Entry<K, V> newer = this;
+
+		Entry(final K key) {
+			this.key = key;
+		}
+
+		// links this entry as the newest entry of the list with the sentinel
+		void linkBefore(final Entry<K, V> sentinel) {
+			older = sentinel.older;
+			newer = sentinel;
+			older.newer = this;
+			sentinel.older = this;
+		}
+
+		void unlink() {
+			older.newer = newer;
+			newer.older = older;
+		}
+	}
+}
@@ -1,8 +1,10 @@
 package us.kbase.auth;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This is a wrapper around the AuthService class that allows configuring the
@@ -47,7 +49,8 @@ public class ConfigurableAuthService {
 			throw new NullPointerException("config cannot be null");
 		}
 		this.config = config;
-		AuthService.checkServiceUrl(this.config.getAuthLoginURL());
+		AuthService.checkServiceUrl(this.config.getAuthLoginURL(),
+				this.config.getTransport());
 	}
 	
 	/**
@@ -67,6 +70,11 @@ public class ConfigurableAuthService {
 	}
 	
 
+	/* Returns the configuration of this client. */
+	AuthConfig getConfig() {
+		return config;
+	}
+	
 	/**
 	 * Logs in a user and returns an AuthUser object, which is more or less a POJO containing basic user attributes,
 	 * along with the generated AuthToken.
@@ -118,6 +126,58 @@ public class ConfigurableAuthService {
 		return AuthService.getUserFromToken(token, config);
 	}
 	
+	/**
+	 * Given an AuthToken object for a logged in user, this returns an
+	 * AuthUser object containing the requested fields of the user's profile.
+	 * The user ID is always included. See
+	 * {@link AuthService#getUserFromToken(AuthToken, Set)} for how the
+	 * profiles are cached.
+	 * 
+	 * @param token the token
+	 * @param fields the fields to fetch.
+	 * @return an AuthUser associated with the given token.
+	 * @throws AuthException if the credentials are invalid
+	 * @throws IOException if there is a problem communicating with the server.
+	 */
+	public AuthUser getUserFromToken(
+			final AuthToken token,
+			final Set<AuthUserField> fields)
+			throws AuthException, IOException {
+		return AuthService.getUserFromToken(token, fields, config);
+	}
+	
+	/**
+	 * Checks whether the user a token represents is a member of a group. See
+	 * {@link AuthService#isMember(AuthToken, String)}.
+	 * 
+	 * @param token the token
+	 * @param group the name of the group.
+	 * @return true if the user is a member of the group.
+	 * @throws AuthException if the credentials are invalid
+	 * @throws IOException if there is a problem communicating with the server.
+	 */
+	public boolean isMember(final AuthToken token, final String group)
+			throws AuthException, IOException {
+		return AuthService.isMember(token, group, config);
+	}
+	
+	/**
+	 * Checks whether the user a token represents is a member of any of a set
+	 * of groups. See {@link AuthService#isMember(AuthToken, String)}.
+	 * 
+	 * @param token the token
+	 * @param groups the names of the groups.
+	 * @return true if the user is a member of at least one of the groups.
+	 * @throws AuthException if the credentials are invalid
+	 * @throws IOException if there is a problem communicating with the server.
+	 */
+	public boolean memberOfAny(
+			final AuthToken token,
+			final Collection<String> groups)
+			throws AuthException, IOException {
+		return AuthService.memberOfAny(token, groups, config);
+	}
+	
 	/**
 	 * Checks whether strings are a valid user names. This method relies
 	 * on the token provided in the configuration object passed to the
@@ -197,6 +257,51 @@ public class ConfigurableAuthService {
 		return AuthService.fetchUserDetail(usernames, token, config);
 	}
 
+	/** Get information about users, returning the result of each user's
+	 * lookup separately so that a failed lookup does not cause the successful
+	 * lookups to be discarded. This method relies on the token provided
+	 * in the configuration object passed to the ConfigurableAuthService
+	 * constructor.
+	 * @param usernames the user names of the users that are the subject of the request
+	 * @return a mapping of username to the result of the lookup for that
+	 * user.
+	 * @throws AuthException if the configured token can't be refreshed.
+	 * @throws IOException if the thread is interrupted while waiting for the
+	 * lookups.
+	 * @throws IllegalArgumentException if a username is invalid.
+	 */
+	public Map<String, UserDetailResult> fetchUserDetailResults(
+			List<String> usernames) throws IOException, AuthException {
+		checkToken();
+		return fetchUserDetailResults(usernames, config.getToken().getToken());
+	}
+	
+	/**
+	 * Get information about users, returning the result of each user's
+	 * lookup separately so that a failed lookup does not cause the successful
+	 * lookups to be discarded. Note that in order to see all users in the
+	 * specified group, the user the provided token
+	 * represents must be an administrator of the group. Otherwise users with
+	 * private profiles will not be visible.
+	 * @param usernames the user names of the users that are the subject of the
+	 * request
+	 * @param token a valid token. If none is provided the method will use the
+	 * token from the configuration object used to initialize the AuthService,
+	 * if any.
+	 * @return a mapping of username to the result of the lookup for that
+	 * user.
+	 * @throws AuthException if the configured token can't be refreshed.
+	 * @throws IOException if the thread is interrupted while waiting for the
+	 * lookups.
+	 * @throws IllegalArgumentException if a username is invalid.
+	 */
+	public Map<String, UserDetailResult> fetchUserDetailResults(
+			List<String> usernames, AuthToken token)
+			throws IOException, AuthException {
+		token = getToken(token);
+		return AuthService.fetchUserDetailResults(usernames, token, config);
+	}
+
 	private AuthToken getToken(AuthToken token) throws AuthException,
 			IOException {
 		if (token == null) {
@@ -220,7 +325,7 @@ public class ConfigurableAuthService {
 	 */
 	public boolean validateToken(String tokenStr)
 			throws TokenFormatException, TokenExpiredException, IOException {
-		AuthToken token = new AuthToken(tokenStr);
+		AuthToken token = AuthToken.parse(tokenStr);
 		return AuthService.validateToken(token, config);
 	}
 	
@@ -237,4 +342,40 @@ public class ConfigurableAuthService {
 			throws TokenExpiredException, IOException {
 		return AuthService.validateToken(token, config);
 	}
+	
+	/**
+	 * Validates a KBase Auth token as {@link #validateToken(AuthToken)}
+	 * does, and also reports whether the answer is degraded, i.e. based on a
+	 * previous verification because the auth server could not be reached.
+	 * See {@link AuthConfig#withStaleWhileErrorWindow(int)}.
+	 *
+	 * @param token the token to validate
+	 * @return the result of the validation.
+	 * @throws TokenExpiredException if the token is expired (it might be otherwise valid)
+	 * @throws IOException if there's a problem communicating with the back end validator.
+	 */
+	public ValidationResult validateTokenWithResult(AuthToken token)
+			throws TokenExpiredException, IOException {
+		return AuthService.validateTokenWithResult(token, config);
+	}
+	
+	/**
+	 * Returns the number of times a token was reported as valid based on a
+	 * previous verification because the authorization server could not be
+	 * reached. The count is shared by all clients, as is the token cache.
+	 * @return the number of degraded validations.
+	 */
+	public long getDegradedValidationCount() {
+		return AuthService.getDegradedValidationCount();
+	}
+	
+	/**
+	 * Returns the cache of tokens that the authorization server rejected
+	 * when validating tokens with this client's configuration. The cache
+	 * records how often it prevented a network query.
+	 * @return the rejected token cache.
+	 */
+	public RejectedTokenCache getRejectedTokenCache() {
+		return config.getRejectedTokenCache();
+	}
 }
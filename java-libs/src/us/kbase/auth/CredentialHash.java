@@ -0,0 +1,51 @@
+package us.kbase.auth;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Hashes user names and passwords with a random salt, so that credentials
+ * can be used as keys without keeping the password. Each instance has its
+ * own salt, so hashes from different instances can't be compared.
+ *
+ * This class is thread safe.
+ */
+final class CredentialHash {
+
+	final private byte[] salt = new byte[16];
+
+	/** Create a hasher with a new random salt. */
+	CredentialHash() {
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/**
+	 * Hash a user name and password.
+	 * @param userName the user name.
+	 * @param password the password.
+	 * @return the salted SHA-256 hash of the credentials, in hex.
+	 */
+	String hash(final String userName, final String password) {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("No SHA-256", e);
+		}
+		md.update(salt);
+		try {
+			md.update(userName.getBytes("UTF-8"));
+			md.update((byte) 0);
+			md.update(password.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("No UTF-8", e);
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final byte b: md.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
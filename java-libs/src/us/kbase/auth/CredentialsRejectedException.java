@@ -0,0 +1,15 @@
+package us.kbase.auth;
+
+/**
+ * Thrown when the authorization server rejects the token or password in a
+ * request, as opposed to failing the request for another reason. Only
+ * tokens rejected this way are remembered by the {@link RejectedTokenCache}.
+ */
+final class CredentialsRejectedException extends AuthException {
+
+	private static final long serialVersionUID = 1L;
+
+	CredentialsRejectedException(final String exception) {
+		super(exception);
+	}
+}
@@ -0,0 +1,29 @@
+package us.kbase.auth;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so that the auth client's background work
+ * never keeps the JVM from exiting.
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+	final private String name;
+	final private AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Create a new thread factory.
+	 * @param name the prefix of the names of the created threads.
+	 */
+	DaemonThreadFactory(final String name) {
+		this.name = name;
+	}
+
+	@Override
+	public Thread newThread(final Runnable r) {
+		final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,382 @@
+package us.kbase.auth;
+
+/**
+ * A map from 128 bit digests to longs with least recently used eviction,
+ * stored in primitive arrays so that lookups and insertions don't allocate
+ * memory.
+ *
+ * The table is split into segments, each guarded by its own lock. Each
+ * segment is an open addressing hash table with linear probing that holds
+ * the digests as pairs of longs along with their values, and keeps its
+ * entries in access order in a doubly linked list made of int indexes into
+ * the table. When a segment grows past its share of the maximum size the
+ * least recently used entries are discarded until the segment is back to its
+ * share of the nominal size.
+ *
+ * Optionally the table may use a TinyLFU admission filter (see
+ * {@link FrequencySketch}). In that case a full segment only accepts a new
+ * digest if it has been looked up more often than the least recently used
+ * digest, which is then evicted to make room. Otherwise the new digest is
+ * dropped. Segments of a table with an admission filter stay at their share
+ * of the maximum size rather than being trimmed to the nominal size.
+ *
+ * Optionally the table may also track when each digest expires, with a
+ * {@link TimingWheel} per segment. Expired digests are removed from a
+ * segment when a digest is added to it, so they don't take the place of
+ * unexpired digests.
+ *
+ * Digests are expected to be uniformly distributed, as cryptographic hashes
+ * are, and are used directly to choose the segment and slot.
+ *
+ * This class is thread safe.
+ */
+final class DigestTable {
+
+	/** Returned by {@link #get(long, long)} if a digest is not in the table.
+	 */
+	final static long ABSENT = Long.MIN_VALUE;
+
+	final private static int MAX_SEGMENTS = 16;
+	final private static int MIN_SEGMENT_SIZE = 64;
+
+	final private Segment[] segments;
+	final private int segmentMask;
+	final private FrequencySketch sketch;
+
+	/**
+	 * Create a new table.
+	 * @param size the nominal size of the table.
+	 * @param maxsize the maximum size of the table.
+	 * @param admissionFilter <code>true</code> to only admit new digests to a
+	 * full table if they are accessed more frequently than the digest they
+	 * would replace.
+	 */
+	DigestTable(
+			final int size,
+			final int maxsize,
+			final boolean admissionFilter) {
+		this(size, maxsize, admissionFilter, false);
+	}
+
+	/**
+	 * Create a new table, optionally tracking when digests expire.
+	 * @param size the nominal size of the table.
+	 * @param maxsize the maximum size of the table.
+	 * @param admissionFilter <code>true</code> to only admit new digests to a
+	 * full table if they are accessed more frequently than the digest they
+	 * would replace.
+	 * @param expiring <code>true</code> to track the expiry times of the
+	 * digests.
+	 */
+	DigestTable(
+			final int size,
+			final int maxsize,
+			final boolean admissionFilter,
+			final boolean expiring) {
+		if (size < 1 || maxsize < 1) {
+			throw new IllegalArgumentException("size and maxsize must be > 0");
+		}
+		if (size >= maxsize) {
+			throw new IllegalArgumentException("size must be < maxsize");
+		}
+		int count = 1;
+		while (count < MAX_SEGMENTS &&
+				size / (count * 2) >= MIN_SEGMENT_SIZE) {
+			count *= 2;
+		}
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(share(size, count, i),
+					share(maxsize, count, i), expiring);
+		}
+		segmentMask = count - 1;
+		sketch = admissionFilter ? new FrequencySketch(maxsize) : null;
+	}
+
+	private static int share(final int total, final int count, final int i) {
+		return total / count + (i < total % count ? 1 : 0);
+	}
+
+	private Segment segmentFor(final long hi) {
+		return segments[(int) (hi >>> 32) & segmentMask];
+	}
+
+	private static int sketchHash(final long hi) {
+		return (int) hi;
+	}
+
+	/**
+	 * Get the value of a digest and mark the digest as the most recently used
+	 * digest.
+	 * @param hi the high 64 bits of the digest.
+	 * @param lo the low 64 bits of the digest.
+	 * @return the value, or {@link #ABSENT} if the digest is not in the table.
+	 */
+	long get(final long hi, final long lo) {
+		if (sketch != null) {
+			sketch.increment(sketchHash(hi));
+		}
+		return segmentFor(hi).get(hi, lo);
+	}
+
+	/**
+	 * Add a digest to the table or replace the value of an existing digest,
+	 * and mark the digest as the most recently used digest. If the table
+	 * tracks expiry times the digest never expires.
+	 * @param hi the high 64 bits of the digest.
+	 * @param lo the low 64 bits of the digest.
+	 * @param value the value of the digest.
+	 * @return <code>false</code> if the admission filter rejected the digest,
+	 * <code>true</code> otherwise.
+	 */
+	boolean put(final long hi, final long lo, final long value) {
+		return put(hi, lo, value, Long.MAX_VALUE, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Add a digest that expires at the given time to the table or replace
+	 * the value and expiry time of an existing digest, and mark the digest
+	 * as the most recently used digest. Expired digests in the digest's
+	 * segment are removed first. If the table doesn't track expiry times
+	 * this is the same as {@link #put(long, long, long)}.
+	 * @param hi the high 64 bits of the digest.
+	 * @param lo the low 64 bits of the digest.
+	 * @param value the value of the digest.
+	 * @param expires the time after which the digest expires, in
+	 * milliseconds.
+	 * @param now the current time in milliseconds.
+	 * @return <code>false</code> if the admission filter rejected the digest,
+	 * <code>true</code> otherwise.
+	 */
+	boolean put(
+			final long hi,
+			final long lo,
+			final long value,
+			final long expires,
+			final long now) {
+		if (value == ABSENT) {
+			throw new IllegalArgumentException("Illegal value: " + value);
+		}
+		return segmentFor(hi).put(hi, lo, value, expires, now, sketch);
+	}
+
+	/**
+	 * Remove a digest from the table.
+	 * @param hi the high 64 bits of the digest.
+	 * @param lo the low 64 bits of the digest.
+	 * @return <code>true</code> if the digest was in the table.
+	 */
+	boolean remove(final long hi, final long lo) {
+		return segmentFor(hi).remove(hi, lo);
+	}
+
+	/**
+	 * Get the number of digests in the table.
+	 * @return the number of digests.
+	 */
+	int size() {
+		int size = 0;
+		for (final Segment s: segments) {
+			size += s.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Get the number of digests in the table that have expired but have not
+	 * yet been removed. Takes time proportional to the size of the table.
+	 * @param now the current time in milliseconds.
+	 * @return the number of expired digests, or 0 if the table doesn't track
+	 * expiry times.
+	 */
+	int countExpired(final long now) {
+		int count = 0;
+		for (final Segment s: segments) {
+			count += s.countExpired(now);
+		}
+		return count;
+	}
+
+	private static class Segment {
+
+		final private int size;
+		final private int maxsize;
+		final private int mask;
+		// the sentinel of the access order list. next[head] is the least
+		// recently used entry and prev[head] the most recently used.
+		final private int head;
+		final private long[] his;
+		final private long[] los;
+		final private long[] values;
+		final private boolean[] used;
+		final private int[] prev;
+		final private int[] next;
+		// null if the table doesn't track expiry times
+		final private TimingWheel wheel;
+		private int count = 0;
+
+		Segment(final int size, final int maxsize, final boolean expiring) {
+			this.size = size;
+			this.maxsize = maxsize;
+			// at most half full, including the entry added before trimming
+			int capacity = 2;
+			while (capacity < (maxsize + 1) * 2) {
+				capacity <<= 1;
+			}
+			mask = capacity - 1;
+			head = capacity;
+			his = new long[capacity];
+			los = new long[capacity];
+			values = new long[capacity];
+			used = new boolean[capacity];
+			prev = new int[capacity + 1];
+			next = new int[capacity + 1];
+			prev[head] = head;
+			next[head] = head;
+			wheel = expiring ? new TimingWheel(capacity) : null;
+		}
+
+		/* Returns the index of the digest if present, or -(slot + 1) where
+		 * slot is the empty slot where it would be inserted.
+		 */
+		private int find(final long hi, final long lo) {
+			int i = (int) lo & mask;
+			while (used[i]) {
+				if (his[i] == hi && los[i] == lo) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+			return -(i + 1);
+		}
+
+		private void unlink(final int i) {
+			next[prev[i]] = next[i];
+			prev[next[i]] = prev[i];
+		}
+
+		private void linkLast(final int i) {
+			final int last = prev[head];
+			next[last] = i;
+			prev[i] = last;
+			next[i] = head;
+			prev[head] = i;
+		}
+
+		private void delete(int i) {
+			unlink(i);
+			if (wheel != null) {
+				wheel.cancel(i);
+			}
+			used[i] = false;
+			count--;
+			// shift following entries back so probes don't stop at the gap
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (!used[j]) {
+					return;
+				}
+				final int k = (int) los[j] & mask;
+				if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+					continue; // entry j can't move to i
+				}
+				his[i] = his[j];
+				los[i] = los[j];
+				values[i] = values[j];
+				used[i] = true;
+				used[j] = false;
+				prev[i] = prev[j];
+				next[i] = next[j];
+				next[prev[i]] = i;
+				prev[next[i]] = i;
+				if (wheel != null) {
+					wheel.move(j, i);
+				}
+				i = j;
+			}
+		}
+
+		synchronized long get(final long hi, final long lo) {
+			final int i = find(hi, lo);
+			if (i < 0) {
+				return ABSENT;
+			}
+			unlink(i);
+			linkLast(i);
+			return values[i];
+		}
+
+		synchronized boolean put(
+				final long hi,
+				final long lo,
+				final long value,
+				final long expires,
+				final long now,
+				final FrequencySketch sketch) {
+			if (wheel != null) {
+				removeExpired(now);
+			}
+			int i = find(hi, lo);
+			if (i >= 0) {
+				values[i] = value;
+				unlink(i);
+				linkLast(i);
+				if (wheel != null) {
+					wheel.cancel(i);
+					wheel.schedule(i, expires);
+				}
+				return true;
+			}
+			if (sketch != null && count >= maxsize) {
+				final int victim = next[head];
+				if (sketch.frequency(sketchHash(hi)) <=
+						sketch.frequency(sketchHash(his[victim]))) {
+					return false;
+				}
+				delete(victim);
+				i = find(hi, lo);
+			}
+			i = -(i + 1);
+			his[i] = hi;
+			los[i] = lo;
+			values[i] = value;
+			used[i] = true;
+			count++;
+			linkLast(i);
+			if (wheel != null) {
+				wheel.schedule(i, expires);
+			}
+			if (count > maxsize) {
+				while (count > size) {
+					delete(next[head]);
+				}
+			}
+			return true;
+		}
+
+		synchronized boolean remove(final long hi, final long lo) {
+			final int i = find(hi, lo);
+			if (i < 0) {
+				return false;
+			}
+			delete(i);
+			return true;
+		}
+
+		synchronized int size() {
+			return count;
+		}
+
+		synchronized int countExpired(final long now) {
+			return wheel == null ? 0 : wheel.countExpired(now);
+		}
+
+		private void removeExpired(final long now) {
+			int i;
+			while ((i = wheel.expired(now)) >= 0) {
+				delete(i);
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package us.kbase.auth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A probabilistic estimate of how often keys have been seen recently.
+ *
+ * This is a count-min sketch with four 4-bit counters per key packed into
+ * longs. Once the number of recorded accesses reaches ten times the expected
+ * number of entries, all counters are halved so that keys which were popular
+ * in the past but are no longer accessed lose their advantage. Estimates may
+ * be too high due to hash collisions but are never too low, other than the
+ * effect of aging.
+ *
+ * The sketch is used as the TinyLFU admission filter for caches: a new entry
+ * is only admitted to a full cache if it is estimated to be accessed more
+ * frequently than the entry it would replace.
+ *
+ * This class is thread safe and does not lock.
+ */
+final class FrequencySketch {
+
+	// from the murmur3 and fnv hashes
+	final private static long[] SEEDS = {0xc3a5c85c97cb3127L,
+		0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+	final private static long RESET_MASK = 0x7777777777777777L;
+	final private static int MAX_COUNT = 15;
+
+	final private AtomicLongArray table;
+	final private int tableMask;
+	final private int sampleSize;
+	final private AtomicInteger additions = new AtomicInteger();
+
+	/**
+	 * Create a new sketch.
+	 * @param maxEntries the maximum number of entries in the cache the sketch
+	 * is protecting.
+	 */
+	FrequencySketch(final int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be > 0");
+		}
+		int size = 1;
+		while (size < maxEntries) {
+			size <<= 1;
+		}
+		table = new AtomicLongArray(size);
+		tableMask = size - 1;
+		sampleSize = maxEntries > Integer.MAX_VALUE / 10 ?
+				Integer.MAX_VALUE : maxEntries * 10;
+	}
+
+	/**
+	 * Returns the estimated number of times a key has been accessed recently.
+	 * @param hash the hash code of the key.
+	 * @return the estimated access frequency, from 0 to 15.
+	 */
+	int frequency(final int hash) {
+		final int start = (hash & 3) << 2;
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < SEEDS.length; i++) {
+			final int index = indexOf(hash, i);
+			final int count = (int) ((table.get(index) >>>
+					((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Records an access of a key.
+	 * @param hash the hash code of the key.
+	 */
+	void increment(final int hash) {
+		final int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if (added && additions.incrementAndGet() >= sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(final int index, final int counter) {
+		final int offset = counter << 2;
+		final long mask = 0xfL << offset;
+		while (true) {
+			final long value = table.get(index);
+			if ((value & mask) == mask) {
+				return false;
+			}
+			if (table.compareAndSet(index, value, value + (1L << offset))) {
+				return true;
+			}
+		}
+	}
+
+	private void reset() {
+		// only one thread may age the counters per sample period
+		final int count = additions.get();
+		if (count < sampleSize ||
+				!additions.compareAndSet(count, count / 2)) {
+			return;
+		}
+		for (int i = 0; i < table.length(); i++) {
+			while (true) {
+				final long value = table.get(i);
+				if (table.compareAndSet(i, value,
+						(value >>> 1) & RESET_MASK)) {
+					break;
+				}
+			}
+		}
+	}
+
+	private int indexOf(final int hash, final int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+}
@@ -0,0 +1,29 @@
+package us.kbase.auth;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A member of a Globus group, as returned by the Globus group members
+ * service. Only the fields used by the auth client are decoded.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+final class GlobusMember {
+
+	@JsonProperty("username")
+	private String userName = null;
+	@JsonProperty("email")
+	private String email = null;
+	@JsonProperty("name")
+	private String fullName = null;
+
+	private GlobusMember() { }
+
+	String getUserName() {
+		return userName;
+	}
+
+	UserDetail toUserDetail() {
+		return new UserDetail(userName, email, fullName);
+	}
+}
@@ -0,0 +1,106 @@
+package us.kbase.auth;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns group names into small integer IDs so that a user's group
+ * memberships can be stored as a bitset and checked without scanning the
+ * user's list of groups.
+ *
+ * IDs are never reused. Once the maximum number of groups has been interned
+ * further group names are not given IDs, and {@link #bits(List)} returns
+ * null for users in such groups so that callers fall back to checking the
+ * list of groups.
+ *
+ * This class is thread safe.
+ */
+final class GroupIndex {
+
+	/** Default maximum number of group names interned. */
+	final static int DEFAULT_MAX_GROUPS = 64 * 1024;
+
+	final private int maxGroups;
+	final private ConcurrentMap<String, Integer> ids =
+			new ConcurrentHashMap<String, Integer>();
+	private int next = 0;
+
+	/**
+	 * Create a new group index.
+	 * @param maxGroups the maximum number of group names to intern.
+	 */
+	GroupIndex(final int maxGroups) {
+		if (maxGroups < 1) {
+			throw new IllegalArgumentException("maxGroups must be > 0");
+		}
+		this.maxGroups = maxGroups;
+	}
+
+	/**
+	 * Get the ID of a group name without interning it.
+	 * @param group the group name.
+	 * @return the ID of the group, or -1 if the group has not been interned.
+	 */
+	int id(final String group) {
+		final Integer id = ids.get(group);
+		return id == null ? -1 : id;
+	}
+
+	/* Returns -1 if the index is full. */
+	private int intern(final String group) {
+		final Integer id = ids.get(group);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			final Integer existing = ids.get(group);
+			if (existing != null) {
+				return existing;
+			}
+			if (next >= maxGroups) {
+				return -1;
+			}
+			ids.put(group, next);
+			return next++;
+		}
+	}
+
+	/**
+	 * Get a bitset of the groups in a list, interning any groups that have
+	 * not been interned.
+	 * @param groups the groups.
+	 * @return the bitset, in which the bit at a group's ID is set, or null if
+	 * any of the groups could not be interned.
+	 */
+	long[] bits(final List<String> groups) {
+		final int[] gids = new int[groups.size()];
+		int max = -1;
+		for (int i = 0; i < gids.length; i++) {
+			gids[i] = intern(groups.get(i));
+			if (gids[i] < 0) {
+				return null;
+			}
+			max = Math.max(max, gids[i]);
+		}
+		final long[] bits = new long[(max >> 6) + 1];
+		for (final int id: gids) {
+			bits[id >> 6] |= 1L << id;
+		}
+		return bits;
+	}
+
+	/**
+	 * Check whether a group's bit is set in a bitset.
+	 * @param bits the bitset returned by {@link #bits(List)}.
+	 * @param group the group name.
+	 * @return true if the group is in the bitset.
+	 */
+	boolean isSet(final long[] bits, final String group) {
+		final int id = id(group);
+		if (id < 0 || (id >> 6) >= bits.length) {
+			return false;
+		}
+		return (bits[id >> 6] & (1L << id)) != 0;
+	}
+}
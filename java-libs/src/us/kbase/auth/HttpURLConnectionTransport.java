@@ -0,0 +1,239 @@
+package us.kbase.auth;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The default {@link AuthTransport}, which sends requests with the JDK's
+ * HttpURLConnection.
+ *
+ * The JDK keeps idle connections alive and reuses them for later requests
+ * to the same host, but only if each response body is read to the end and
+ * closed rather than the connection being disconnected. This transport
+ * always releases connections that way, including on error responses, so
+ * that requests after a cache miss don't pay for a new TCP and TLS
+ * handshake. The number of idle connections kept per host and how long they
+ * are kept are set by the JDK (see the http.maxConnections system property).
+ *
+ * The number of requests in progress to each host is limited, so that bursts
+ * of requests wait for a connection rather than opening connections that
+ * the JDK cannot keep. A request waits for a connection for at most the
+ * connect timeout. A request holds its connection until its response is
+ * closed, so responses must always be closed.
+ *
+ * Requests fail with an IOException if a connection can't be made within the
+ * connect timeout or the server doesn't send data within the read timeout,
+ * rather than waiting forever on a server that doesn't respond.
+ *
+ * This class is thread safe.
+ */
+public class HttpURLConnectionTransport implements AuthTransport {
+
+	/**
+	 * Default maximum number of requests in progress per host.
+	 */
+	final public static int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+	/**
+	 * Default connect timeout in milliseconds.
+	 */
+	final public static int DEFAULT_CONNECT_TIMEOUT_MSEC = 10000;
+	/**
+	 * Default read timeout in milliseconds.
+	 */
+	final public static int DEFAULT_READ_TIMEOUT_MSEC = 30000;
+
+	final private int maxConnectionsPerHost;
+	final private int connectTimeoutMSec;
+	final private int readTimeoutMSec;
+	final private ConcurrentMap<String, Semaphore> hosts =
+			new ConcurrentHashMap<String, Semaphore>();
+
+	/**
+	 * Create a new transport.
+	 * @param maxConnectionsPerHost the maximum number of requests in progress
+	 * to a host. Further requests wait until a request completes.
+	 * @param connectTimeoutMSec how long to wait for a connection to a host,
+	 * in milliseconds, including the time waiting for a request in progress
+	 * to complete.
+	 * @param readTimeoutMSec how long to wait for data from a host, in
+	 * milliseconds.
+	 */
+	public HttpURLConnectionTransport(
+			final int maxConnectionsPerHost,
+			final int connectTimeoutMSec,
+			final int readTimeoutMSec) {
+		if (maxConnectionsPerHost < 1) {
+			throw new IllegalArgumentException(
+					"maxConnectionsPerHost must be > 0");
+		}
+		if (connectTimeoutMSec < 1 || readTimeoutMSec < 1) {
+			throw new IllegalArgumentException(
+					"connectTimeoutMSec and readTimeoutMSec must be > 0");
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.connectTimeoutMSec = connectTimeoutMSec;
+		this.readTimeoutMSec = readTimeoutMSec;
+	}
+
+	/**
+	 * Create a new transport with the default timeouts.
+	 * @param maxConnectionsPerHost the maximum number of requests in progress
+	 * to a host. Further requests wait until a request completes.
+	 */
+	public HttpURLConnectionTransport(final int maxConnectionsPerHost) {
+		this(maxConnectionsPerHost, DEFAULT_CONNECT_TIMEOUT_MSEC,
+				DEFAULT_READ_TIMEOUT_MSEC);
+	}
+
+	/**
+	 * Create a new transport with default parameters.
+	 */
+	public HttpURLConnectionTransport() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * Returns the maximum number of requests in progress per host.
+	 * @return the maximum number of requests.
+	 */
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	/**
+	 * Returns the connect timeout.
+	 * @return the connect timeout in milliseconds.
+	 */
+	public int getConnectTimeout() {
+		return connectTimeoutMSec;
+	}
+
+	/**
+	 * Returns the read timeout.
+	 * @return the read timeout in milliseconds.
+	 */
+	public int getReadTimeout() {
+		return readTimeoutMSec;
+	}
+
+	@Override
+	public AuthResponse send(final AuthRequest request) throws IOException {
+		final Semaphore permits = permitsFor(request.getURL());
+		try {
+			if (!permits.tryAcquire(
+					connectTimeoutMSec, TimeUnit.MILLISECONDS)) {
+				throw new SocketTimeoutException(
+						"Timed out waiting for a connection to " +
+						request.getURL().getHost());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			final InterruptedIOException ie = new InterruptedIOException(
+					"Interrupted while waiting for a connection to " +
+					request.getURL().getHost());
+			ie.initCause(e);
+			throw ie;
+		}
+		try {
+			return doSend(request, permits);
+		} catch (IOException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private AuthResponse doSend(
+			final AuthRequest request,
+			final Semaphore permits)
+			throws IOException {
+		final HttpURLConnection conn =
+				(HttpURLConnection) request.getURL().openConnection();
+		conn.setRequestMethod(request.getMethod());
+		conn.setUseCaches(false);
+		conn.setConnectTimeout(connectTimeoutMSec);
+		conn.setReadTimeout(readTimeoutMSec);
+		for (final Map.Entry<String, String> h:
+				request.getHeaders().entrySet()) {
+			conn.setRequestProperty(h.getKey(), h.getValue());
+		}
+		final byte[] body = request.getBody();
+		if (body != null) {
+			// don't use streaming mode, in which the JDK drops the
+			// connection on a 401 response
+			conn.setDoOutput(true);
+			final OutputStream out = conn.getOutputStream();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+		}
+		final int code = conn.getResponseCode();
+		InputStream in;
+		if (code >= 400) {
+			in = conn.getErrorStream();
+		} else {
+			in = conn.getInputStream();
+		}
+		if (in == null) { // no body
+			permits.release();
+			return new AuthResponse(code, conn.getResponseMessage(), null);
+		}
+		return new AuthResponse(code, conn.getResponseMessage(),
+				new ReleasingInputStream(in, permits));
+	}
+
+	private Semaphore permitsFor(final URL url) {
+		final int port = url.getPort() == -1 ? url.getDefaultPort() :
+			url.getPort();
+		final String key = url.getProtocol() + "://" + url.getHost() + ":" +
+			port;
+		Semaphore s = hosts.get(key);
+		if (s == null) {
+			final Semaphore newsem = new Semaphore(maxConnectionsPerHost);
+			s = hosts.putIfAbsent(key, newsem);
+			if (s == null) {
+				s = newsem;
+			}
+		}
+		return s;
+	}
+
+	/* Releases the host permit when the response body is closed. */
+	private static class ReleasingInputStream extends FilterInputStream {
+
+		final private Semaphore permits;
+		final private AtomicBoolean released = new AtomicBoolean();
+
+		ReleasingInputStream(final InputStream in, final Semaphore permits) {
+			super(in);
+			this.permits = permits;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (released.compareAndSet(false, true)) {
+					permits.release();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package us.kbase.auth;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Decodes JSON response bodies from the auth servers.
+ *
+ * The readers are created once and shared, since they are immutable and
+ * thread safe, and decode directly from the response stream rather than
+ * reading the response into a String first. Responses larger than the
+ * configured maximum size are rejected as soon as the limit is passed.
+ */
+final class JsonResponses {
+
+	// the start of a response that is kept to report decoding errors
+	final private static int ERROR_HEAD_SIZE = 1024;
+
+	final private static ObjectMapper MAPPER = new ObjectMapper();
+	/** Reads {@link AuthUser}s. */
+	final static ObjectReader AUTH_USER = MAPPER.reader(AuthUser.class);
+	/** Reads {@link GlobusMember}s. */
+	final static ObjectReader GLOBUS_MEMBER =
+			MAPPER.reader(GlobusMember.class);
+	/** Reads {@link SigningKey}s. */
+	final static ObjectReader SIGNING_KEY = MAPPER.reader(SigningKey.class);
+
+	private JsonResponses() {}
+
+	/**
+	 * Decode a response body.
+	 * @param reader the reader for the type of the response.
+	 * @param body the response body.
+	 * @param maxSize the maximum size of the body in bytes.
+	 * @return the decoded response, or null if the body is the JSON null.
+	 * @throws AuthException if the body could not be decoded. The start of
+	 * the body is available as the exception's data.
+	 * @throws IOException if the body could not be read or is larger than the
+	 * maximum size.
+	 */
+	static <T> T read(
+			final ObjectReader reader,
+			final InputStream body,
+			final int maxSize)
+			throws AuthException, IOException {
+		final BoundedInputStream in = new BoundedInputStream(body, maxSize);
+		try {
+			return reader.readValue(in);
+		} catch (JsonProcessingException e) {
+			throw new AuthException(e.getMessage(), e, in.head());
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Fails once more than max bytes have been read, and remembers the
+	 * first bytes read.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+
+		final private int max;
+		final private byte[] head = new byte[ERROR_HEAD_SIZE];
+		private int count = 0;
+
+		BoundedInputStream(final InputStream in, final int max) {
+			super(in);
+			this.max = max;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b != -1) {
+				if (count < head.length) {
+					head[count] = (byte) b;
+				}
+				counted(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException {
+			final int read = super.read(b, off, len);
+			if (read > 0) {
+				record(b, off, read);
+			}
+			return read;
+		}
+
+		private void record(final byte[] b, final int off, final int len)
+				throws IOException {
+			if (count < head.length) {
+				System.arraycopy(b, off, head, count,
+						Math.min(len, head.length - count));
+			}
+			counted(len);
+		}
+
+		private void counted(final int len) throws IOException {
+			count += len;
+			if (count > max) {
+				throw new IOException(
+						"Response exceeds the maximum size of " + max +
+						" bytes");
+			}
+		}
+
+		String head() {
+			try {
+				return new String(head, 0, Math.min(count, head.length),
+						"UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException("No UTF-8", e);
+			}
+		}
+	}
+}
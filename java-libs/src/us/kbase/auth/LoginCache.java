@@ -0,0 +1,134 @@
+package us.kbase.auth;
+
+import java.io.IOException;
+
+/**
+ * Remembers recent logins, so that logging in again with the same
+ * credentials within a short window returns the user from the earlier login
+ * rather than logging in again. Concurrent logins with the same credentials
+ * are coalesced into one login.
+ *
+ * Credentials are identified by a salted hash of the user name and
+ * password; the password itself is never stored. The salt is random and
+ * specific to the cache. Only successful logins are remembered.
+ *
+ * This class is thread safe.
+ */
+final class LoginCache {
+
+	/** Nominal size of the cache. */
+	final static int SIZE = 100;
+	/** Maximum size of the cache. */
+	final static int MAX_SIZE = 200;
+
+	/** A login that may be remembered. */
+	interface Login {
+
+		/**
+		 * Log in.
+		 * @return the logged in user.
+		 * @throws AuthException if the credentials are invalid.
+		 * @throws IOException if an IO error occurs.
+		 */
+		AuthUser login() throws AuthException, IOException;
+	}
+
+	final private long windowMSec;
+	final private CredentialHash hasher = new CredentialHash();
+	final private ConcurrentLruCache<String, Entry> cache =
+			new ConcurrentLruCache<String, Entry>(SIZE, MAX_SIZE);
+	final private SingleFlight<String, AuthUser> logins =
+			new SingleFlight<String, AuthUser>();
+
+	/**
+	 * Create a new login cache.
+	 * @param windowSeconds how long a login is remembered, in seconds.
+	 */
+	LoginCache(final int windowSeconds) {
+		if (windowSeconds < 1) {
+			throw new IllegalArgumentException("windowSeconds must be > 0");
+		}
+		windowMSec = windowSeconds * 1000L;
+	}
+
+	/**
+	 * Returns the user from a recent login with the same credentials and
+	 * token lifetime, or logs in.
+	 * @param userName the user name.
+	 * @param password the password.
+	 * @param expiry the lifetime of the token in seconds.
+	 * @param login the login to run if there is no recent login.
+	 * @return the logged in user. The user may be shared with other callers
+	 * and its group list cannot be modified.
+	 * @throws AuthException if the credentials are invalid.
+	 * @throws IOException if an IO error occurs.
+	 */
+	AuthUser login(
+			final String userName,
+			final String password,
+			final long expiry,
+			final Login login)
+			throws AuthException, IOException {
+		final String key = key(userName, password, expiry);
+		final AuthUser cached = get(key);
+		if (cached != null) {
+			return cached;
+		}
+		return logins.execute(key, new SingleFlight.Call<AuthUser>() {
+
+			@Override
+			public AuthUser call() throws AuthException, IOException {
+				final long now = Clock.system().millis();
+				final AuthUser u = AuthUser.empty().merge(login.login(),
+						AuthUserField.ALL);
+				cache.put(key, new Entry(u, now));
+				return u;
+			}
+		});
+	}
+
+	/**
+	 * Returns the user from a recent login with the same credentials and
+	 * token lifetime without logging in.
+	 * @param userName the user name.
+	 * @param password the password.
+	 * @param expiry the lifetime of the token in seconds.
+	 * @return the logged in user, or null if there is no recent login.
+	 */
+	AuthUser getRecent(
+			final String userName,
+			final String password,
+			final long expiry) {
+		return get(key(userName, password, expiry));
+	}
+
+	private AuthUser get(final String key) {
+		final Entry e = cache.get(key);
+		if (e == null ||
+				Clock.system().millis() - e.loggedIn > windowMSec) {
+			return null;
+		}
+		if (e.user.getToken() != null && e.user.getToken().isExpired()) {
+			return null;
+		}
+		return e.user;
+	}
+
+	private String key(
+			final String userName,
+			final String password,
+			final long expiry) {
+		return hasher.hash(userName, password) + ":" + expiry;
+	}
+
+	private static final class Entry {
+
+		final private AuthUser user;
+		final private long loggedIn;
+
+		Entry(final AuthUser user, final long loggedIn) {
+			this.user = user;
+			this.loggedIn = loggedIn;
+		}
+	}
+}
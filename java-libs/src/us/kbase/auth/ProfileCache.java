@@ -0,0 +1,140 @@
+package us.kbase.auth;
+
+/**
+ * Caches the user profiles fetched from the authorization server by token,
+ * so that repeated requests for a user's profile don't query the server.
+ *
+ * A profile may hold only some of the user's fields. Each entry records
+ * which fields it holds so that a request for fields the entry doesn't hold
+ * can fetch just the missing fields and merge them into the entry. Callers
+ * provide the maximum age of an entry, measured from when its oldest fields
+ * were fetched, when they look it up.
+ *
+ * Like {@link TokenCache}, tokens are stored as their digests and the least
+ * recently accessed profiles are discarded when the cache grows past its
+ * maximum size. The two caches are independent: evicting a token from the
+ * token cache doesn't remove its profile, since eviction only means the
+ * token cache is full, not that the token is invalid. Profiles are removed
+ * when their token is rejected, and callers don't look up the profiles of
+ * expired tokens.
+ *
+ * This class is thread safe.
+ */
+final class ProfileCache {
+
+	/** Default nominal size of the cache. */
+	final static int DEFAULT_SIZE = 500;
+	/** Default maximum size of the cache. */
+	final static int DEFAULT_MAX_SIZE = 1000;
+
+	final private ConcurrentLruCache<Key, Profile> cache;
+
+	/**
+	 * Create a new profile cache.
+	 * @param size the nominal size of the cache in profiles.
+	 * @param maxsize the maximum size of the cache in profiles.
+	 */
+	ProfileCache(final int size, final int maxsize) {
+		cache = new ConcurrentLruCache<Key, Profile>(size, maxsize);
+	}
+
+	/**
+	 * Get the cached profile for a token.
+	 * @param token the token.
+	 * @param maxAgeMSec the maximum age of the profile in milliseconds.
+	 * @return the profile, or null if there is no profile for the token or
+	 * it is too old.
+	 */
+	Profile get(final AuthToken token, final long maxAgeMSec) {
+		final Key k = Key.of(token);
+		final Profile p = cache.get(k);
+		if (p == null) {
+			return null;
+		}
+		if (Clock.system().millis() - p.fetched > maxAgeMSec) {
+			return null;
+		}
+		return p;
+	}
+
+	/**
+	 * Cache a profile for a token, replacing any existing profile.
+	 * @param token the token.
+	 * @param profile the profile.
+	 */
+	void put(final AuthToken token, final Profile profile) {
+		cache.put(Key.of(token), profile);
+	}
+
+	/**
+	 * Remove the profile for a token.
+	 * @param token the token.
+	 */
+	void remove(final AuthToken token) {
+		cache.remove(Key.of(token));
+	}
+
+	/**
+	 * Get the number of profiles in the cache.
+	 * @return the number of profiles.
+	 */
+	int size() {
+		return cache.size();
+	}
+
+	/** A cached, possibly partial, user profile. */
+	static final class Profile {
+
+		/** The user. Fields not in the mask have their default values. */
+		final AuthUser user;
+		/** The fields held by the profile, see {@link AuthUserField}. */
+		final int fields;
+		/** When the oldest of the fields was fetched, in milliseconds. */
+		final long fetched;
+		/** The user's groups as a bitset from a {@link GroupIndex}, or null if
+		 * the groups are not held or could not be indexed.
+		 */
+		final long[] groups;
+
+		Profile(
+				final AuthUser user,
+				final int fields,
+				final long fetched,
+				final long[] groups) {
+			this.user = user;
+			this.fields = fields;
+			this.fetched = fetched;
+			this.groups = groups;
+		}
+	}
+
+	private static final class Key {
+
+		final private long hi;
+		final private long lo;
+
+		private Key(final long hi, final long lo) {
+			this.hi = hi;
+			this.lo = lo;
+		}
+
+		static Key of(final AuthToken token) {
+			final TokenDigest d = TokenDigest.of(token);
+			return new Key(d.hi, d.lo);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) hi;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key k = (Key) obj;
+			return hi == k.hi && lo == k.lo;
+		}
+	}
+}
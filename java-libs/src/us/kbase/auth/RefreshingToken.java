@@ -1,7 +1,14 @@
 package us.kbase.auth;
 
 import java.io.IOException;
-import java.util.Date;
+import java.lang.ref.WeakReference;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import us.kbase.auth.AuthException;
 import us.kbase.auth.AuthService;
@@ -9,73 +16,276 @@ import us.kbase.auth.AuthToken;
 
 /** An auto-refreshing token. The token refreshes itself periodically and so
  * can never expire as long as the credentials are valid.
+ *
+ * The token is refreshed in the background when three quarters of the
+ * refresh interval have passed, or at a random earlier time within a window
+ * if the token was created by a {@link RefreshingTokenManager}. A timer
+ * thread shared by all refreshing tokens starts refreshes when they are
+ * due, as does {@link #getToken()}, but the logins run on a bounded pool of
+ * threads, so a login that hangs only delays the refresh of its own token.
+ * A token never has more than one refresh in progress. Callers of
+ * {@link #getToken()} are never blocked by a refresh while the current
+ * token is within its lifetime. If a refresh fails, or every login thread
+ * is busy, it is retried with exponential backoff, timed from the start of
+ * the failed attempt. Only once the current token has expired does
+ * {@link #getToken()} log in itself, and then only one thread logs in at a
+ * time.
+ *
+ * Refreshes are timed by the clock of the token's configuration, see
+ * {@link AuthConfig#withClock(Clock)}.
+ *
+ * If the refresh interval is 0, the token is refreshed on every call to
+ * {@link #getToken()}.
+ *
+ * This class is thread safe.
  * @author gaprice@lbl.gov
  *
  */
 public class RefreshingToken {
-	
+
+	final private static long MIN_RETRY_MSEC = 1000;
+	final private static long MAX_RETRY_MSEC = 5 * 60 * 1000;
+	final private static ScheduledThreadPoolExecutor REFRESHER =
+			new ScheduledThreadPoolExecutor(1,
+					new DaemonThreadFactory("kbase-auth-token-refresh"));
+	// a token has at most one login in progress. Refreshes that find every
+	// thread busy are retried later.
+	final private static int MAX_LOGINS = 16;
+	final private static ThreadPoolExecutor LOGINS = new ThreadPoolExecutor(
+			0, MAX_LOGINS, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			new DaemonThreadFactory("kbase-auth-token-login"));
+	final private static Random JITTER = new Random();
+
 	final private String user;
 	final private String password;
-	final private int refreshIntervalMSec;
+	final private long refreshIntervalMSec;
 	final private ConfigurableAuthService auth;
-	private AuthToken token;
-	private Date refreshDate;
-	
+	final private long jitterMSec;
+	final private Clock clock;
+	final private AtomicBoolean refreshing = new AtomicBoolean();
+	private volatile State state;
+
 	RefreshingToken(
 			final String user,
 			final String password,
-			final int refreshIntervalSeconds) 
+			final int refreshIntervalSeconds)
 			throws AuthException, IOException {
 		this(user, password, refreshIntervalSeconds, null);
 	}
-	
+
 	RefreshingToken(
 			final String user,
 			final String password,
 			final int refreshIntervalSeconds,
 			final ConfigurableAuthService auth)
 			throws AuthException, IOException {
+		this(user, password, refreshIntervalSeconds, auth, 0);
+	}
+
+	/* jitterSeconds is the size of the window, ending when three quarters of
+	 * the refresh interval have passed, in which refreshes are randomly
+	 * scheduled. It is capped at a quarter of the interval.
+	 */
+	RefreshingToken(
+			final String user,
+			final String password,
+			final int refreshIntervalSeconds,
+			final ConfigurableAuthService auth,
+			final int jitterSeconds)
+			throws AuthException, IOException {
 		checkString(user, "user");
 		checkString(password, "password");
 		if (refreshIntervalSeconds < 0) {
 			throw new IllegalArgumentException(
 					"refreshInterval must be 0 or greater");
 		}
+		if (jitterSeconds < 0) {
+			throw new IllegalArgumentException("jitter must be 0 or greater");
+		}
 		this.user = user;
 		this.password = password;
-		this.refreshIntervalMSec = refreshIntervalSeconds * 1000;
+		this.refreshIntervalMSec = refreshIntervalSeconds * 1000L;
 		this.auth = auth;
-		this.token = login(user, password);
-		this.refreshDate = new Date();
+		this.jitterMSec = Math.min(jitterSeconds * 1000L,
+				refreshIntervalMSec / 4);
+		this.clock = auth == null ? Clock.system() :
+				auth.getConfig().getClock();
+		this.state = newState(login(user, password));
+		if (refreshIntervalMSec > 0) {
+			schedule(untilRefresh(state));
+		}
 	}
-	
+
 	private AuthToken login(final String user, final String password)
 			throws AuthException, IOException {
+		// bypass the login cache, which could return the current token
 		if (auth == null) {
 			return AuthService.login(user, password).getToken();
 		} else {
-			return auth.login(user, password).getToken();
+			return AuthService.loginWithServer(user, password,
+					AuthToken.DEFAULT_EXPIRES, auth.getConfig()).getToken();
 		}
 	}
-	
+
 	/** Returns the token.
 	 * @return the token.
 	 * @throws AuthException if the user credentials are no longer valid.
 	 * @throws IOException if an IO error occurs.
 	 */
 	public AuthToken getToken() throws AuthException, IOException {
-		if (new Date().getTime() - refreshDate.getTime()
-				> refreshIntervalMSec) {
-			this.token = login(user, password);
-			this.refreshDate = new Date();
+		final State s = state;
+		if (refreshIntervalMSec > 0 && !s.token.isExpired()) {
+			if (s.due <= clock.millis()) {
+				refreshIfDue();
+			}
+			return s.token;
+		}
+		return loginNow(s);
+	}
+
+	/* Logs in unless another thread already replaced the given state with an
+	 * unexpired token.
+	 */
+	private synchronized AuthToken loginNow(final State seen)
+			throws AuthException, IOException {
+		final State s = state;
+		if (refreshIntervalMSec > 0 && s != seen && !s.token.isExpired()) {
+			return s.token;
 		}
-		return token;
+		final AuthToken t = login(user, password);
+		state = newState(t);
+		return t;
 	}
-	
+
+	/* Run by the scheduler, which checks again a second later while a
+	 * refresh is in progress.
+	 */
+	private void onTimer() {
+		refreshIfDue();
+		final long wait = untilRefresh(state);
+		schedule(wait > 0 ? wait : MIN_RETRY_MSEC);
+	}
+
+	/* Starts a refresh on the login pool if one is due and none is in
+	 * progress. A token that was refreshed by another thread is not
+	 * refreshed again until it is due.
+	 */
+	private void refreshIfDue() {
+		if (untilRefresh(state) > 0 ||
+				!refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		// a refresh that finished since the state was read has updated it
+		final State s = state;
+		final long now = clock.millis();
+		if (s.due > now) {
+			refreshing.set(false);
+			return;
+		}
+		try {
+			LOGINS.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					refreshNow(s, now);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// every login thread is busy
+			failed(s, now);
+			refreshing.set(false);
+		}
+	}
+
+	/* Run by the login pool. The lock isn't held while logging in, so a
+	 * slow login doesn't block getToken() once the token expires.
+	 */
+	private void refreshNow(final State s, final long start) {
+		try {
+			state = newState(login(user, password));
+		} catch (AuthException e) {
+			failed(s, start);
+		} catch (IOException e) {
+			failed(s, start);
+		} catch (RuntimeException e) {
+			failed(s, start);
+		} finally {
+			refreshing.set(false);
+		}
+	}
+
+	/* Keeps the current token and schedules a retry, unless getToken()
+	 * already logged in.
+	 */
+	private synchronized void failed(final State s, final long start) {
+		if (state == s) {
+			state = new State(s.token, start + s.retryMSec,
+					Math.min(s.retryMSec * 2, MAX_RETRY_MSEC));
+		}
+	}
+
+	private State newState(final AuthToken token) {
+		long due = clock.millis() + refreshIntervalMSec / 4 * 3;
+		if (jitterMSec > 0) {
+			due -= (long) (JITTER.nextDouble() * jitterMSec);
+		}
+		return new State(token, due, MIN_RETRY_MSEC);
+	}
+
+	private long untilRefresh(final State s) {
+		return s.due - clock.millis();
+	}
+
+	private void schedule(final long delayMSec) {
+		try {
+			REFRESHER.schedule(new Refresh(this),
+					Math.max(delayMSec, 0), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the scheduler is shut down, getToken() will log in when the
+			// token expires
+		}
+	}
+
 	private static void checkString(final String s, final String sname) {
 		if (s == null || s.isEmpty()) {
-			throw new IllegalArgumentException(sname + 
+			throw new IllegalArgumentException(sname +
 					" cannot be null or the empty string");
 		}
 	}
+
+	private static final class State {
+
+		final private AuthToken token;
+		// when the token should be refreshed
+		final private long due;
+		// how long to wait before retrying if the refresh fails
+		final private long retryMSec;
+
+		State(final AuthToken token, final long due, final long retryMSec) {
+			this.token = token;
+			this.due = due;
+			this.retryMSec = retryMSec;
+		}
+	}
+
+	/* Only weakly references the token, so that tokens that are no longer
+	 * used can be garbage collected and stop refreshing.
+	 */
+	private static final class Refresh implements Runnable {
+
+		final private WeakReference<RefreshingToken> token;
+
+		Refresh(final RefreshingToken token) {
+			this.token = new WeakReference<RefreshingToken>(token);
+		}
+
+		@Override
+		public void run() {
+			final RefreshingToken t = token.get();
+			if (t != null) {
+				t.onTimer();
+			}
+		}
+	}
 }
@@ -0,0 +1,138 @@
+package us.kbase.auth;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Hands out {@link RefreshingToken}s for service accounts, sharing one
+ * token between all holders of the same credentials.
+ *
+ * Requests for a token with the same user name, password and refresh
+ * interval as a token the manager already handed out return that token, so
+ * one login serves all the holders. Each token's refreshes are scheduled at
+ * a random time within a window before they are due, so that many
+ * processes started at the same time don't all log in again at the same
+ * time. As for all refreshing tokens, a single shared timer thread only
+ * schedules the refreshes, and the logins run on a bounded shared pool of
+ * background threads, so a hung login doesn't delay other tokens.
+ *
+ * Credentials are identified by a salted hash, so the manager doesn't keep
+ * passwords beyond those held by the tokens themselves. Tokens are only
+ * weakly referenced by the manager and stop refreshing once no holder
+ * references them.
+ *
+ * This class is thread safe.
+ */
+public class RefreshingTokenManager {
+
+	final private ConfigurableAuthService auth;
+	final private int refreshWindowSeconds;
+	final private CredentialHash hasher = new CredentialHash();
+	final private ConcurrentMap<String, WeakReference<RefreshingToken>>
+			tokens = new ConcurrentHashMap<String,
+					WeakReference<RefreshingToken>>();
+	final private SingleFlight<String, RefreshingToken> logins =
+			new SingleFlight<String, RefreshingToken>();
+
+	/** Create a token manager.
+	 * @param auth the client used to log in.
+	 * @param refreshWindowSeconds the size of the window in which a token's
+	 * refreshes are randomly scheduled, in seconds. The window ends when the
+	 * refresh is due and is capped at a quarter of the refresh interval.
+	 */
+	public RefreshingTokenManager(
+			final ConfigurableAuthService auth,
+			final int refreshWindowSeconds) {
+		if (auth == null) {
+			throw new NullPointerException("auth cannot be null");
+		}
+		if (refreshWindowSeconds < 0) {
+			throw new IllegalArgumentException(
+					"refreshWindowSeconds must be 0 or greater");
+		}
+		this.auth = auth;
+		this.refreshWindowSeconds = refreshWindowSeconds;
+	}
+
+	/** Returns a token that continually refreshes itself and thus never
+	 * expires, as long as the credentials are correct. If this manager
+	 * already handed out a token for the same credentials and refresh
+	 * interval that token is returned.
+	 * @param userName the user name of the user who the token will represent.
+	 * @param password the password of the user.
+	 * @param refreshIntervalInSeconds the how frequently the token should
+	 * refresh itself, in seconds. 24 * 60 * 60 is generally reasonable.
+	 * @return a auto-refreshing token.
+	 * @throws AuthException if the credentials are invalid.
+	 * @throws IOException if an IO error occurs.
+	 */
+	public RefreshingToken getRefreshingToken(
+			final String userName,
+			final String password,
+			final int refreshIntervalInSeconds)
+			throws AuthException, IOException {
+		// as checked by RefreshingToken, but needed for the key
+		if (userName == null) {
+			throw new IllegalArgumentException(
+					"user cannot be null or the empty string");
+		}
+		if (password == null) {
+			throw new IllegalArgumentException(
+					"password cannot be null or the empty string");
+		}
+		final String key = key(userName, password, refreshIntervalInSeconds);
+		final RefreshingToken existing = get(key);
+		if (existing != null) {
+			return existing;
+		}
+		return logins.execute(key, new SingleFlight.Call<RefreshingToken>() {
+
+			@Override
+			public RefreshingToken call() throws AuthException, IOException {
+				RefreshingToken t = get(key);
+				if (t == null) {
+					t = new RefreshingToken(userName, password,
+							refreshIntervalInSeconds, auth,
+							refreshWindowSeconds);
+					tokens.put(key, new WeakReference<RefreshingToken>(t));
+				}
+				return t;
+			}
+		});
+	}
+
+	/** Returns the number of tokens handed out by this manager that are
+	 * still in use.
+	 * @return the number of tokens.
+	 */
+	public int getTokenCount() {
+		int count = 0;
+		for (final String key: tokens.keySet()) {
+			if (get(key) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/* Returns null and forgets the key if the token was collected. */
+	private RefreshingToken get(final String key) {
+		final WeakReference<RefreshingToken> ref = tokens.get(key);
+		if (ref == null) {
+			return null;
+		}
+		final RefreshingToken t = ref.get();
+		if (t == null) {
+			tokens.remove(key, ref);
+		}
+		return t;
+	}
+
+	private String key(
+			final String userName,
+			final String password,
+			final int refreshIntervalInSeconds) {
+		return hasher.hash(userName, password) + ":" + refreshIntervalInSeconds;
+	}
+}
@@ -0,0 +1,111 @@
+package us.kbase.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches tokens that the token provider rejected, so that clients that retry
+ * with a bad or revoked token don't cause a network query on every attempt.
+ *
+ * Tokens are remembered for a short, fixed time after they are rejected.
+ * Otherwise the cache behaves like {@link TokenCache}: tokens are stored as
+ * their digests and the least recently accessed tokens are discarded when the
+ * cache grows past its maximum size.
+ *
+ * This class is thread safe.
+ */
+public class RejectedTokenCache {
+
+	/**
+	 * Default nominal size of the cache.
+	 */
+	final public static int DEFAULT_SIZE = 500;
+	/**
+	 * Default maximum size of the cache.
+	 */
+	final public static int DEFAULT_MAX_SIZE = 1000;
+	/**
+	 * Default time in seconds that a rejected token is remembered.
+	 */
+	final public static int DEFAULT_EXPIRY = 60;
+
+	final private DigestTable cache;
+	final private long expiryMSec;
+	final private AtomicLong hits = new AtomicLong();
+	final private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Create a new RejectedTokenCache.
+	 * @param size the nominal size of the cache in tokens
+	 * @param maxsize the maximum size of the cache in tokens
+	 * @param expirySeconds how long a rejected token is remembered, in
+	 * seconds.
+	 */
+	public RejectedTokenCache(int size, int maxsize, int expirySeconds) {
+		if (expirySeconds < 1) {
+			throw new IllegalArgumentException("expirySeconds must be > 0");
+		}
+		cache = new DigestTable(size, maxsize, false);
+		expiryMSec = expirySeconds * 1000L;
+	}
+
+	/**
+	 * Create a new RejectedTokenCache with default parameters.
+	 */
+	public RejectedTokenCache() {
+		this(DEFAULT_SIZE, DEFAULT_MAX_SIZE, DEFAULT_EXPIRY);
+	}
+
+	/**
+	 * Determine whether a token was recently rejected.
+	 * @param token the token to check
+	 * @return <code>true</code> if the token is in the cache,
+	 * <code>false</code> otherwise.
+	 */
+	public boolean hasToken(AuthToken token) {
+		final TokenDigest d = TokenDigest.of(token);
+		final long rejected = cache.get(d.hi, d.lo);
+		if (rejected != DigestTable.ABSENT) {
+			if (Clock.system().millis() - rejected <= expiryMSec) {
+				hits.incrementAndGet();
+				return true;
+			}
+			cache.remove(d.hi, d.lo);
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Add a token that the token provider rejected to the cache.
+	 * @param token the token to add
+	 */
+	public void putRejectedToken(AuthToken token) {
+		final TokenDigest d = TokenDigest.of(token);
+		cache.put(d.hi, d.lo, Clock.system().millis());
+	}
+
+	/**
+	 * Get the number of lookups that found a rejected token in the cache.
+	 * @return the number of cache hits.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups that did not find a rejected token in the
+	 * cache.
+	 * @return the number of cache misses.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the time a rejected token is remembered.
+	 * @return the expiry time in seconds.
+	 */
+	public int getExpiry() {
+		return (int) (expiryMSec / 1000);
+	}
+}
@@ -0,0 +1,28 @@
+package us.kbase.auth;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A token signing key, as returned by the Globus key service at a token's
+ * signing subject URL. Only the fields used by the auth client are decoded.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+final class SigningKey {
+
+	@JsonProperty("valid")
+	private boolean valid = false;
+	@JsonProperty("pubkey")
+	private String publicKey = null;
+
+	private SigningKey() { }
+
+	boolean isValid() {
+		return valid;
+	}
+
+	/** Returns the public key in PEM format. */
+	String getPublicKey() {
+		return publicKey;
+	}
+}
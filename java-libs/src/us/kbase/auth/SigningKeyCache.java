@@ -0,0 +1,321 @@
+package us.kbase.auth;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Verifies token signatures locally with the public keys published at the
+ * tokens' signing subject URLs.
+ *
+ * A Globus token contains the URL of the key that signed it (the
+ * SigningSubject) and a hex encoded SHA1 with RSA signature (sig) over the
+ * rest of the token (the token data). Keys are only fetched from signing
+ * subjects that start with one of the trusted URL prefixes, since otherwise
+ * anyone could sign a token with their own key. Fetched keys are cached and
+ * fetched again after the key expiry time. If a signature does not verify
+ * with a cached key that is more than a minute old, the key is fetched again
+ * in case it was rotated.
+ *
+ * Verification only proves that the token was issued by the trusted
+ * service and has not expired. It cannot tell whether the token has since
+ * been revoked.
+ *
+ * This class is thread safe.
+ */
+final class SigningKeyCache {
+
+	// how long to wait before fetching a key again after a failed fetch or
+	// a signature that didn't verify
+	final private static long MIN_REFETCH_MSEC = 60 * 1000;
+	final private static int CACHE_SIZE = 50;
+	final private static int CACHE_MAX_SIZE = 100;
+	// the part of the signing subject after the trusted prefix
+	final private static Pattern KEY_ID =
+			Pattern.compile("[A-Za-z0-9_~-][A-Za-z0-9._~-]*");
+	final private static String PEM_START = "-----BEGIN PUBLIC KEY-----";
+	final private static String PEM_END = "-----END PUBLIC KEY-----";
+	final private static ThreadLocal<Signature> SIGNATURE =
+			new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			try {
+				return Signature.getInstance("SHA1withRSA");
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("No SHA1withRSA", e);
+			}
+		}
+	};
+
+	final private List<String> trustedPrefixes;
+	final private long expiryMSec;
+	final private AuthConfig config;
+	final private ConcurrentLruCache<String, Key> keys =
+			new ConcurrentLruCache<String, Key>(CACHE_SIZE, CACHE_MAX_SIZE);
+	final private SingleFlight<String, Key> fetches =
+			new SingleFlight<String, Key>();
+
+	/**
+	 * Create a new signing key cache.
+	 * @param trustedPrefixes the URL prefixes of trusted signing subjects.
+	 * @param expirySeconds how long a key is cached, in seconds.
+	 * @param config the configuration to use when fetching keys.
+	 */
+	SigningKeyCache(
+			final List<String> trustedPrefixes,
+			final int expirySeconds,
+			final AuthConfig config) {
+		if (expirySeconds < 1) {
+			throw new IllegalArgumentException("expirySeconds must be > 0");
+		}
+		this.trustedPrefixes = Collections.unmodifiableList(trustedPrefixes);
+		this.expiryMSec = expirySeconds * 1000L;
+		this.config = config;
+	}
+
+	/**
+	 * Verify a token's signature with the key at its signing subject.
+	 * @param token the token.
+	 * @return true if the token is unexpired and its signature verifies with
+	 * a trusted key. False means the result is inconclusive and the token
+	 * should be checked with the authorization server.
+	 */
+	boolean verify(final AuthToken token) {
+		final String subject = token.getSigningSubject();
+		if (subject == null || token.getSignature() == null ||
+				!isTrusted(subject) || !isUnexpired(token)) {
+			return false;
+		}
+		final byte[] sig = fromHex(token.getSignature());
+		if (sig == null) {
+			return false;
+		}
+		final byte[] data;
+		try {
+			data = token.getTokenData().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("No UTF-8", e);
+		}
+		final long now = Clock.system().millis();
+		Key key = keys.get(subject);
+		if (key == null || now - key.fetched > key.ttl) {
+			key = fetch(subject);
+		}
+		if (verify(key.key, data, sig)) {
+			return true;
+		}
+		if (now - key.fetched <= MIN_REFETCH_MSEC) {
+			return false;
+		}
+		// the key may have been rotated
+		return verify(fetch(subject).key, data, sig);
+	}
+
+	private boolean isTrusted(final String subject) {
+		for (final String prefix: trustedPrefixes) {
+			if (subject.startsWith(prefix) && KEY_ID.matcher(
+					subject.substring(prefix.length())).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Checks the expiry time set by the token issuer, which the token's own
+	 * isExpired() method doesn't.
+	 */
+	private static boolean isUnexpired(final AuthToken token) {
+		final String data = "|" + token.getTokenData() + "|";
+		final int start = data.indexOf("|expiry=");
+		if (start == -1) {
+			return false;
+		}
+		final String exp = data.substring(start + 8, data.indexOf('|',
+				start + 8));
+		try {
+			return Long.parseLong(exp) * 1000 > Clock.wall().millis();
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static boolean verify(
+			final PublicKey key,
+			final byte[] data,
+			final byte[] sig) {
+		if (key == null) {
+			return false;
+		}
+		final Signature s = SIGNATURE.get();
+		try {
+			s.initVerify(key);
+			s.update(data);
+			return s.verify(sig);
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	private Key fetch(final String subject) {
+		try {
+			return fetches.execute(subject, new SingleFlight.Call<Key>() {
+
+				@Override
+				public Key call() {
+					final Key k = fetchKey(subject);
+					keys.put(subject, k);
+					return k;
+				}
+			});
+		} catch (AuthException e) {
+			// fetchKey doesn't throw checked exceptions
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			// interrupted while waiting for another thread's fetch
+			return new Key(null, Clock.system().millis(), 0);
+		}
+	}
+
+	/* Failed fetches are remembered for a short time so that tokens signed
+	 * by a missing key don't cause a fetch on every validation.
+	 */
+	private Key fetchKey(final String subject) {
+		final long now = Clock.system().millis();
+		final Key failed = new Key(null, now,
+				Math.min(MIN_REFETCH_MSEC, expiryMSec));
+		final SigningKey sk;
+		try {
+			final URL url = new URL(subject);
+			final AuthResponse resp = config.getTransport().send(
+					new AuthRequest("GET", url,
+							Collections.<String, String>emptyMap(), null));
+			try {
+				if (resp.getCode() != 200) {
+					return failed;
+				}
+				sk = JsonResponses.read(JsonResponses.SIGNING_KEY,
+						resp.getBody(), config.getMaxResponseSize());
+			} finally {
+				resp.close();
+			}
+		} catch (MalformedURLException e) {
+			return failed;
+		} catch (AuthException e) {
+			return failed;
+		} catch (IOException e) {
+			return failed;
+		}
+		if (sk == null || !sk.isValid() || sk.getPublicKey() == null) {
+			return failed;
+		}
+		final PublicKey key = parsePem(sk.getPublicKey());
+		if (key == null) {
+			return failed;
+		}
+		return new Key(key, now, expiryMSec);
+	}
+
+	private static PublicKey parsePem(final String pem) {
+		final int start = pem.indexOf(PEM_START);
+		final int end = pem.indexOf(PEM_END);
+		if (start == -1 || end < start) {
+			return null;
+		}
+		final byte[] der = fromBase64(
+				pem.substring(start + PEM_START.length(), end));
+		if (der == null) {
+			return null;
+		}
+		try {
+			return KeyFactory.getInstance("RSA").generatePublic(
+					new X509EncodedKeySpec(der));
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+	}
+
+	/* Returns null if the string isn't valid hex. */
+	private static byte[] fromHex(final String hex) {
+		if (hex.length() % 2 != 0) {
+			return null;
+		}
+		final byte[] b = new byte[hex.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			final int hi = Character.digit(hex.charAt(2 * i), 16);
+			final int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (hi == -1 || lo == -1) {
+				return null;
+			}
+			b[i] = (byte) ((hi << 4) | lo);
+		}
+		return b;
+	}
+
+	/* Decodes base64, ignoring whitespace. Returns null if the string isn't
+	 * valid base64.
+	 */
+	private static byte[] fromBase64(final String b64) {
+		final byte[] out = new byte[b64.length() * 3 / 4];
+		int len = 0;
+		int buf = 0;
+		int bits = 0;
+		boolean padding = false;
+		for (int i = 0; i < b64.length(); i++) {
+			final char c = b64.charAt(i);
+			final int v;
+			if (c >= 'A' && c <= 'Z') {
+				v = c - 'A';
+			} else if (c >= 'a' && c <= 'z') {
+				v = c - 'a' + 26;
+			} else if (c >= '0' && c <= '9') {
+				v = c - '0' + 52;
+			} else if (c == '+') {
+				v = 62;
+			} else if (c == '/') {
+				v = 63;
+			} else if (c == '=') {
+				padding = true;
+				continue;
+			} else if (Character.isWhitespace(c)) {
+				continue;
+			} else {
+				return null;
+			}
+			if (padding) {
+				return null;
+			}
+			buf = (buf << 6) | v;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				out[len++] = (byte) (buf >> bits);
+			}
+		}
+		final byte[] ret = new byte[len];
+		System.arraycopy(out, 0, ret, 0, len);
+		return ret;
+	}
+
+	private static final class Key {
+
+		/** The key, or null if it could not be fetched. */
+		final private PublicKey key;
+		final private long fetched;
+		final private long ttl;
+
+		Key(final PublicKey key, final long fetched, final long ttl) {
+			this.key = key;
+			this.fetched = fetched;
+			this.ttl = ttl;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package us.kbase.auth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls with the same key into a single call.
+ *
+ * The first thread to call {@link #execute(Object, Call)} for a key runs the
+ * call. Any other thread that calls with the same key while the first call
+ * is in progress waits for it and receives the same result or exception.
+ * Once the call completes the key is forgotten, so results are not cached.
+ *
+ * This class is thread safe.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the call results.
+ */
+final class SingleFlight<K, V> {
+
+	/**
+	 * A call that may be coalesced.
+	 *
+	 * @param <V> the type of the call result.
+	 */
+	interface Call<V> {
+
+		/**
+		 * Run the call.
+		 * @return the result of the call.
+		 * @throws AuthException if an authorization error occurs.
+		 * @throws IOException if an IO error occurs.
+		 */
+		V call() throws AuthException, IOException;
+	}
+
+	final private ConcurrentMap<K, FutureTask<V>> inFlight =
+			new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * Run a call, or wait for an identical call that is already running.
+	 * @param key the key identifying the call.
+	 * @param call the call.
+	 * @return the result of the call.
+	 * @throws AuthException if the call throws an AuthException.
+	 * @throws IOException if the call throws an IOException, or the thread
+	 * is interrupted while waiting for another thread's call.
+	 */
+	V execute(final K key, final Call<V> call)
+			throws AuthException, IOException {
+		final FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+
+			@Override
+			public V call() throws Exception {
+				return call.call();
+			}
+		});
+		FutureTask<V> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			running = task;
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			final InterruptedIOException ie = new InterruptedIOException(
+					"Interrupted while waiting for a concurrent call");
+			ie.initCause(e);
+			throw ie;
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof AuthException) {
+				throw (AuthException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+}
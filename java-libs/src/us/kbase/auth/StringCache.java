@@ -1,17 +1,13 @@
 package us.kbase.auth;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * Caches strings with an expiry time.
  * 
- * Strings are stored until the size of the cache is greater than the maximum
- * allowed size. Strings are then ordered by most recent access and the oldest
- * strings are discarded to return the cache to its nominal size.
+ * Strings are stored until they expire or the size of the cache is greater
+ * than the maximum allowed size. The least recently accessed strings are
+ * then discarded to return the cache to its nominal size. Expired strings
+ * are removed when strings are added to the cache, so they don't take the
+ * place of unexpired strings.
  * 
  * This class is thread safe.
  * 
@@ -19,8 +15,6 @@ import java.util.concurrent.ConcurrentHashMap;
  *
  */
 public class StringCache {
-	// is there some way to share code with tokencache? Doesn't seem so...
-	
 	/**
 	 * Default nominal size of the cache.
 	 */
@@ -34,13 +28,9 @@ public class StringCache {
 	 */
 	final public static long EXPIRY = 24 * 60 * 60;
 	
-	final private static int ADDED = 0;
-	final private static int TOUCHED = 1;
-	
-	final private int size;
-	final private int maxsize;
-	private long expiry = EXPIRY;
-	final private ConcurrentHashMap<String, List<Date>> cache;
+	private volatile long expiry = EXPIRY;
+	// the cache tracks when strings expire, so the value is unused
+	final private ConcurrentLruCache<String, Boolean> cache;
 	
 	/**
 	 * Create a new StringCache.
@@ -48,15 +38,21 @@ public class StringCache {
 	 * @param maxsize the maximum size of the cache in strings
 	 */
 	public StringCache(int size, int maxsize) {
-		if (size < 1 || maxsize < 1) {
-			throw new IllegalArgumentException("size and maxsize must be > 0");
-		}
-		if (size >= maxsize) {
-			throw new IllegalArgumentException("size must be < maxsize");
+		this(size, maxsize, Clock.system());
+	}
+	
+	/**
+	 * Create a new StringCache that checks expiry with the given clock.
+	 * @param size the nominal size of the cache in strings
+	 * @param maxsize the maximum size of the cache in strings
+	 * @param clock the clock.
+	 */
+	public StringCache(int size, int maxsize, Clock clock) {
+		if (clock == null) {
+			throw new NullPointerException("clock cannot be null");
 		}
-		this.size = size;
-		this.maxsize = maxsize;
-		cache = new ConcurrentHashMap<String, List<Date>>(maxsize);
+		cache = new ConcurrentLruCache<String, Boolean>(size, maxsize, clock,
+				EXPIRY * 1000);
 	}
 	
 	/**
@@ -83,6 +79,7 @@ public class StringCache {
 			throw new IllegalArgumentException("seconds must be > 0");
 		}
 		expiry = seconds;
+		cache.setTimeToLive(seconds * 1000);
 	}
 	
 	/**
@@ -103,17 +100,7 @@ public class StringCache {
 		if (string == null) {
 			throw new NullPointerException("string cannot be null");
 		}
-		if (!cache.containsKey(string)) {
-			return false;
-		}
-		if (new Date().getTime() - cache.get(string).get(ADDED).getTime() > expiry * 1000) {
-			return false;
-		}
-		List<Date> dates = new ArrayList<Date>();
-		dates.add(ADDED, cache.get(string).get(ADDED));
-		dates.add(TOUCHED, new Date());
-		cache.put(string, dates);
-		return true;
+		return cache.get(string) != null;
 	}
 		
 	/**
@@ -124,38 +111,25 @@ public class StringCache {
 		if (string == null) {
 			throw new NullPointerException("string cannot be null");
 		}
-		Date now = new Date();
-		List<Date> dates = new ArrayList<Date>();
-		dates.add(ADDED, now);
-		dates.add(TOUCHED, now);
-		cache.put(string, dates);
-		synchronized (cache) { // block here otherwise all threads may start sorting
-			if(cache.size() <= maxsize) {return;}
-			List<DateString> ds = new ArrayList<DateString>();
-			for (String s: cache.keySet()) {
-				ds.add(new DateString(cache.get(s).get(TOUCHED), s));
-			}
-			Collections.sort(ds);
-			for(int i = size; i < ds.size(); i++) {
-				cache.remove(ds.get(i).string);
-			}
-		}
+		cache.put(string, Boolean.TRUE);
 	}
-}
-
-class DateString implements Comparable<DateString>{
-
-	final String string;
-	final Date date;
 	
-	DateString(Date date, String string) {
-		this.string = string;
-		this.date = date;
+	/**
+	 * Get the number of strings in the cache that have expired but have not
+	 * yet been removed. Takes time proportional to the number of expired
+	 * strings.
+	 * @return the number of expired strings.
+	 */
+	public int getExpiredCount() {
+		return cache.countExpired();
 	}
 	
-	@Override
-	public int compareTo(DateString ds) {
-		return -this.date.compareTo(ds.date); //descending
+	/**
+	 * Get the number of unexpired strings in the cache. Takes time
+	 * proportional to the number of expired strings.
+	 * @return the number of unexpired strings.
+	 */
+	public int getLiveCount() {
+		return Math.max(0, cache.size() - getExpiredCount());
 	}
-	
-}
\ No newline at end of file
+}
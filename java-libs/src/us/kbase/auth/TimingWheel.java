@@ -0,0 +1,219 @@
+package us.kbase.auth;
+
+/**
+ * A hierarchical timing wheel that tracks when the entries of a cache
+ * segment expire, so that the segment can remove expired entries rather than
+ * leaving them in place until they are looked up or evicted.
+ *
+ * Entries are identified by their index in the segment, and the wheel is
+ * stored in primitive arrays indexed the same way, so scheduling and
+ * expiring entries don't allocate memory.
+ *
+ * Time is divided into ticks of {@link #TICK_MSEC} milliseconds. The wheel
+ * has {@link #LEVELS} levels of 64 slots each. A slot in the lowest level
+ * holds the entries that expire in one tick, a slot in the next level the
+ * entries that expire in a span of 64 ticks, and so on. When time reaches
+ * the start of a higher level slot's span the slot's entries are moved to
+ * lower levels. Scheduling, cancelling and expiring an entry therefore take
+ * amortized constant time, however distant the expiry time. Entries that
+ * expire beyond the span of the highest level, about 124 days, are placed
+ * at its end and placed again when they are reached.
+ *
+ * The entries of the current tick are checked individually, so an entry is
+ * expired as soon as its expiry time has passed.
+ *
+ * This class is not thread safe. It is guarded by the lock of the segment
+ * that owns it.
+ */
+final class TimingWheel {
+
+	/** The length of a tick in milliseconds. */
+	final static long TICK_MSEC = 10;
+	/** The number of levels of the wheel. */
+	final static int LEVELS = 5;
+
+	final private static int SLOT_BITS = 6;
+	final private static int SLOTS = 1 << SLOT_BITS;
+	final private static int SLOT_MASK = SLOTS - 1;
+	// the largest number of ticks ahead an entry can be placed
+	final private static long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	final private int capacity;
+	final private long[] expires;
+	// the slot each entry is in, level by level
+	final private int[] slots;
+	// the entries of each slot are kept in a circular doubly linked list
+	// made of int indexes. The sentinel of slot s is at capacity + s.
+	final private int[] prev;
+	final private int[] next;
+	// the number of entries in each level
+	final private int[] counts = new int[LEVELS];
+	// the current tick. Earlier ticks have been processed.
+	private long tick = 0;
+
+	/**
+	 * Create a new timing wheel.
+	 * @param capacity the number of entries of the segment that owns the
+	 * wheel. Entries are numbered from 0 to capacity - 1.
+	 */
+	TimingWheel(final int capacity) {
+		this.capacity = capacity;
+		expires = new long[capacity];
+		slots = new int[capacity];
+		prev = new int[capacity + LEVELS * SLOTS];
+		next = new int[capacity + LEVELS * SLOTS];
+		for (int s = capacity; s < next.length; s++) {
+			prev[s] = s;
+			next[s] = s;
+		}
+	}
+
+	/**
+	 * Schedule an entry that is not scheduled to expire.
+	 * @param i the index of the entry.
+	 * @param expires the time after which the entry expires, in
+	 * milliseconds.
+	 */
+	void schedule(final int i, final long expires) {
+		this.expires[i] = expires;
+		insert(i);
+	}
+
+	/**
+	 * Stop tracking a scheduled entry.
+	 * @param i the index of the entry.
+	 */
+	void cancel(final int i) {
+		counts[slots[i] / SLOTS]--;
+		next[prev[i]] = next[i];
+		prev[next[i]] = prev[i];
+	}
+
+	/**
+	 * Move a scheduled entry to an index that is not scheduled, for example
+	 * when the owner of the wheel moves the entry within its table.
+	 * @param from the current index of the entry.
+	 * @param to the new index of the entry.
+	 */
+	void move(final int from, final int to) {
+		expires[to] = expires[from];
+		slots[to] = slots[from];
+		prev[to] = prev[from];
+		next[to] = next[from];
+		next[prev[to]] = to;
+		prev[next[to]] = to;
+	}
+
+	/**
+	 * Advance the wheel to the current time and find an entry that has
+	 * expired. The owner is expected to cancel and remove the entry, and to
+	 * call this method again until no expired entries remain.
+	 * @param now the current time in milliseconds.
+	 * @return the index of an entry whose expiry time is before the current
+	 * time, or -1 if there are none.
+	 */
+	int expired(final long now) {
+		final long nowTick = now / TICK_MSEC;
+		while (tick < nowTick) {
+			int level = 0;
+			while (level < LEVELS && counts[level] == 0) {
+				level++;
+			}
+			if (level == LEVELS) {
+				tick = nowTick;
+				return -1;
+			}
+			if (level > 0) {
+				// skip to the start of the next span of the lowest occupied
+				// level rather than visiting every tick
+				final long span = 1L << (SLOT_BITS * level);
+				moveTo(Math.min((tick / span + 1) * span, nowTick));
+				continue;
+			}
+			final int s = capacity + ((int) tick & SLOT_MASK);
+			if (next[s] != s) {
+				// every entry of an earlier tick has expired
+				return next[s];
+			}
+			moveTo(tick + 1);
+		}
+		final int s = capacity + ((int) tick & SLOT_MASK);
+		for (int i = next[s]; i != s; i = next[i]) {
+			if (expires[i] < now) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the number of scheduled entries that have expired. Takes time
+	 * proportional to the number of entries.
+	 * @param now the current time in milliseconds.
+	 * @return the number of expired entries.
+	 */
+	int countExpired(final long now) {
+		int count = 0;
+		for (int s = capacity; s < next.length; s++) {
+			for (int i = next[s]; i != s; i = next[i]) {
+				if (expires[i] < now) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private void moveTo(final long tick) {
+		this.tick = tick;
+		if ((tick & SLOT_MASK) == 0) {
+			cascade();
+		}
+	}
+
+	/* Moves the entries in the higher level slots whose span starts at the
+	 * current tick to lower levels. A slot in one level is only emptied when
+	 * the slots of all the levels below it wrap around.
+	 */
+	private void cascade() {
+		for (int level = 1; level < LEVELS; level++) {
+			final int index =
+					(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+			final int s = capacity + level * SLOTS + index;
+			int i = next[s];
+			prev[s] = s;
+			next[s] = s;
+			while (i != s) {
+				final int n = next[i];
+				counts[level]--;
+				insert(i);
+				i = n;
+			}
+			if (index != 0) {
+				return;
+			}
+		}
+	}
+
+	private void insert(final int i) {
+		// entries that are already due are placed in the current tick
+		long t = Math.max(expires[i] / TICK_MSEC, tick);
+		if (t - tick > MAX_TICKS) {
+			t = tick + MAX_TICKS;
+		}
+		int level = 0;
+		while (level < LEVELS - 1 &&
+				t - tick >= 1L << (SLOT_BITS * (level + 1))) {
+			level++;
+		}
+		final int slot = level * SLOTS +
+				((int) (t >>> (SLOT_BITS * level)) & SLOT_MASK);
+		counts[level]++;
+		slots[i] = slot;
+		final int s = capacity + slot;
+		prev[i] = s;
+		next[i] = next[s];
+		prev[next[s]] = i;
+		next[s] = i;
+	}
+}
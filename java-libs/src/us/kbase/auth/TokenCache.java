@@ -1,19 +1,16 @@
 package us.kbase.auth;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * Caches tokens to avoid network queries to the token provider.
  * 
- * Tokens are stored until the size of the cache is greater than the maximum
- * allowed size. Tokens are then ordered by most recent access and the oldest
- * tokens are discarded to return the cache to its nominal size.
+ * Tokens are stored until they expire or the size of the cache is greater
+ * than the maximum allowed size. The least recently accessed tokens are then
+ * discarded to return the cache to its nominal size. Expired tokens are
+ * removed when tokens are added to the cache, so they don't take the place
+ * of unexpired tokens.
+ * 
+ * Tokens are stored as their MD5 digests. Checking whether a token is in the
+ * cache does not allocate memory.
  * 
  * This class is thread safe.
  * 
@@ -31,9 +28,10 @@ public class TokenCache {
 	 */
 	final public static int DEFAULT_MAX_SIZE = 2000;
 	
-	final private int size;
-	final private int maxsize;
-	final private ConcurrentHashMap<String, Date> cache;
+	final private DigestTable cache;
+	// verification times are durations, expiry times are wall clock times
+	final private Clock clock;
+	final private Clock expiryClock;
 	
 	/**
 	 * Create a new TokenCache.
@@ -41,15 +39,48 @@ public class TokenCache {
 	 * @param maxsize the maximum size of the cache in tokens
 	 */
 	public TokenCache(int size, int maxsize) {
-		if (size < 1 || maxsize < 1) {
-			throw new IllegalArgumentException("size and maxsize must be > 0");
-		}
-		if (size >= maxsize) {
-			throw new IllegalArgumentException("size must be < maxsize");
+		this(size, maxsize, false);
+	}
+	
+	/**
+	 * Create a new TokenCache, optionally with a TinyLFU admission filter.
+	 * 
+	 * With the filter a token is only added to a full cache if it has been
+	 * looked up more frequently than the least recently used token, which it
+	 * then replaces. This prevents bursts of tokens that are only used once,
+	 * for example from a batch job that creates a token per task, from
+	 * pushing long lived tokens out of the cache.
+	 * @param size the nominal size of the cache in tokens
+	 * @param maxsize the maximum size of the cache in tokens
+	 * @param admissionFilter <code>true</code> to use the admission filter.
+	 */
+	public TokenCache(int size, int maxsize, boolean admissionFilter) {
+		this(size, maxsize, admissionFilter, Clock.system(), Clock.wall());
+	}
+	
+	/**
+	 * Create a new TokenCache that checks token expiry and records
+	 * verification times with the given clock. By default verification
+	 * times are read from the {@link Clock#system() system clock} and token
+	 * expiry is checked against the {@link Clock#wall() wall clock}.
+	 * @param size the nominal size of the cache in tokens
+	 * @param maxsize the maximum size of the cache in tokens
+	 * @param admissionFilter <code>true</code> to use the admission filter.
+	 * @param clock the clock.
+	 */
+	public TokenCache(int size, int maxsize, boolean admissionFilter,
+			Clock clock) {
+		this(size, maxsize, admissionFilter, clock, clock);
+	}
+	
+	private TokenCache(int size, int maxsize, boolean admissionFilter,
+			Clock clock, Clock expiryClock) {
+		if (clock == null) {
+			throw new NullPointerException("clock cannot be null");
 		}
-		this.size = size;
-		this.maxsize = maxsize;
-		cache = new ConcurrentHashMap<String, Date>(maxsize);
+		cache = new DigestTable(size, maxsize, admissionFilter, true);
+		this.clock = clock;
+		this.expiryClock = expiryClock;
 	}
 	
 	/**
@@ -75,92 +106,69 @@ public class TokenCache {
 	 * @throws TokenExpiredException if the token is expired.
 	 */
 	public boolean hasToken(AuthToken token) throws TokenExpiredException {
-		return checkToken(token).tokenInCache;
+		return getVerifiedTime(token) != DigestTable.ABSENT;
+	}
+	
+	/**
+	 * Get the time a token was last added to the cache, which is the time it
+	 * was last verified by the token provider.
+	 * @param token the token to check
+	 * @return the verification time as read from the cache's clock, or
+	 * {@link DigestTable#ABSENT} if the token is not in the cache.
+	 * @throws TokenExpiredException if the token is expired.
+	 */
+	long getVerifiedTime(AuthToken token) throws TokenExpiredException {
+		checkExpired(token);
+		final TokenDigest d = TokenDigest.of(token);
+		return cache.get(d.hi, d.lo);
 	}
 	
-	private MD5Bool checkToken(AuthToken token) throws TokenExpiredException {
-		if(token.isExpired()) {
+	private void checkExpired(AuthToken token)
+			throws TokenExpiredException {
+		if(token.isExpired(expiryClock)) {
 			throw new TokenExpiredException("token expired");
 		}
-		String tokmd = tokenToMD5(token);
-		if(cache.containsKey(tokmd)) {
-			cache.put(tokmd, new Date());
-			return new MD5Bool(true, tokmd);
-		}
-		return new MD5Bool(false, tokmd);
 	}
 	
 	/**
-	 * Add a token to the cache. This method assumes the token is valid.
+	 * Add a token to the cache. This method assumes the token is valid and
+	 * was just verified. If the cache uses an admission filter the token may
+	 * not be added.
 	 * @param token the token to add
 	 * @throws TokenExpiredException if the token is expired.
 	 */
 	public void putValidToken(AuthToken token) throws TokenExpiredException {
-		final MD5Bool sb = checkToken(token);
-		if(sb.tokenInCache) {return;}
-		cache.put(sb.tokenMD5, new Date());
-		synchronized (cache) { // block here otherwise all threads may start sorting
-			if(cache.size() <= maxsize) {return;}
-			List<DateMD5> dmd5s = new ArrayList<DateMD5>();
-			for (String s: cache.keySet()) {
-				dmd5s.add(new DateMD5(cache.get(s), s));
-			}
-			Collections.sort(dmd5s);
-			for(int i = size; i < dmd5s.size(); i++) {
-				cache.remove(dmd5s.get(i).md5);
-			}
-		}
-	}
-	
-	private static String tokenToMD5(AuthToken token) {
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance("md5");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("No md5", e);
-		}
-		return bytesToHex(md.digest(token.toString().getBytes()));
-	}
-
-	// from http://stackoverflow.com/questions/9655181/convert-from-byte-array-to-hex-string-in-java
-	final private static char[] hexArray = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-	private static String bytesToHex(byte[] bytes) {
-		char[] hexChars = new char[bytes.length * 2];
-		int v;
-		for ( int j = 0; j < bytes.length; j++ ) {
-			v = bytes[j] & 0xFF;
-			hexChars[j * 2] = hexArray[v >>> 4];
-			hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-		}
-		return new String(hexChars);
+		checkExpired(token);
+		final TokenDigest d = TokenDigest.of(token);
+		cache.put(d.hi, d.lo, clock.millis(), token.getExpiresAt(),
+				expiryClock.millis());
 	}
-}
-
-class MD5Bool {
 	
-	boolean tokenInCache;
-	String tokenMD5;
-
-	MD5Bool(boolean tokenInCache, String md5) {
-		this.tokenInCache = tokenInCache;
-		this.tokenMD5 = md5;
+	/**
+	 * Remove a token from the cache, for example because the token provider
+	 * no longer accepts it.
+	 * @param token the token to remove
+	 */
+	public void removeToken(AuthToken token) {
+		final TokenDigest d = TokenDigest.of(token);
+		cache.remove(d.hi, d.lo);
 	}
 	
-}
-
-class DateMD5 implements Comparable<DateMD5>{
-
-	final String md5;
-	final Date date;
-	
-	DateMD5(Date date, String md5) {
-		this.md5 = md5;
-		this.date = date;
+	/**
+	 * Get the number of tokens in the cache that have expired but have not
+	 * yet been removed. Takes time proportional to the size of the cache.
+	 * @return the number of expired tokens.
+	 */
+	public int getExpiredCount() {
+		return cache.countExpired(expiryClock.millis());
 	}
 	
-	@Override
-	public int compareTo(DateMD5 dmd5) {
-		return -this.date.compareTo(dmd5.date); //descending
+	/**
+	 * Get the number of unexpired tokens in the cache. Takes time
+	 * proportional to the size of the cache.
+	 * @return the number of unexpired tokens.
+	 */
+	public int getLiveCount() {
+		return Math.max(0, cache.size() - getExpiredCount());
 	}
-	
-}
\ No newline at end of file
+}
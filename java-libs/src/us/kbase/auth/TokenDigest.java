@@ -0,0 +1,87 @@
+package us.kbase.auth;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the MD5 digest of a token as two longs without allocating
+ * memory, so that tokens can be used as keys in caches without keeping the
+ * token itself in memory.
+ *
+ * Each thread has its own instance, obtained via {@link #of(AuthToken)},
+ * which holds the digest of the last token it was given. The digest must be
+ * read before the thread digests another token.
+ */
+final class TokenDigest {
+
+	private static final ThreadLocal<TokenDigest> DIGESTS =
+			new ThreadLocal<TokenDigest>() {
+				@Override
+				protected TokenDigest initialValue() {
+					return new TokenDigest();
+				}
+			};
+
+	/** The high 64 bits of the digest. */
+	long hi;
+	/** The low 64 bits of the digest. */
+	long lo;
+
+	final private MessageDigest md;
+	final private byte[] digest = new byte[16];
+	private byte[] buffer = new byte[1024];
+
+	private TokenDigest() {
+		try {
+			md = MessageDigest.getInstance("md5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("No md5", e);
+		}
+	}
+
+	/**
+	 * Digest a token.
+	 * @param token the token to digest.
+	 * @return this thread's digest instance, holding the token's digest.
+	 */
+	static TokenDigest of(final AuthToken token) {
+		return DIGESTS.get().digest(token.toString());
+	}
+
+	private TokenDigest digest(final String token) {
+		final int len = token.length();
+		if (buffer.length < len * 3) {
+			buffer = new byte[len * 3];
+		}
+		// ascii as is, anything else as 3 bytes, which is unambiguous
+		int pos = 0;
+		for (int i = 0; i < len; i++) {
+			final char c = token.charAt(i);
+			if (c < 0x80) {
+				buffer[pos++] = (byte) c;
+			} else {
+				buffer[pos++] = (byte) (0xE0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		md.update(buffer, 0, pos);
+		try {
+			md.digest(digest, 0, digest.length);
+		} catch (DigestException e) {
+			throw new RuntimeException("md5 digest is not 16 bytes", e);
+		}
+		hi = toLong(digest, 0);
+		lo = toLong(digest, 8);
+		return this;
+	}
+
+	private static long toLong(final byte[] b, final int offset) {
+		long l = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			l = (l << 8) | (b[i] & 0xFF);
+		}
+		return l;
+	}
+}
@@ -0,0 +1,69 @@
+package us.kbase.auth;
+
+/**
+ * The result of looking up the details of a single user. Either the lookup
+ * succeeded, in which case the details are available if the user exists and
+ * is visible, or it failed with an error.
+ */
+public class UserDetailResult {
+
+	final private String userName;
+	final private UserDetail detail;
+	final private Exception error;
+
+	UserDetailResult(final String userName, final UserDetail detail) {
+		this.userName = userName;
+		this.detail = detail;
+		this.error = null;
+	}
+
+	UserDetailResult(final String userName, final Exception error) {
+		if (error == null) {
+			throw new NullPointerException("error cannot be null");
+		}
+		this.userName = userName;
+		this.detail = null;
+		this.error = error;
+	}
+
+	/**
+	 * Returns the user name that was looked up.
+	 * @return the user name.
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Returns whether the lookup succeeded.
+	 * @return <code>true</code> if the lookup succeeded, <code>false</code>
+	 * if it failed with an error.
+	 */
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	/**
+	 * Returns the details of the user.
+	 * @return the user details, or <code>null</code> if the user does not
+	 * exist, is not visible, or the lookup failed.
+	 */
+	public UserDetail getDetail() {
+		return detail;
+	}
+
+	/**
+	 * Returns the error that caused the lookup to fail. This is an
+	 * AuthException, an IOException, or an unexpected RuntimeException.
+	 * @return the error, or <code>null</code> if the lookup succeeded.
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return "UserDetailResult [userName=" + userName + ", detail=" +
+				detail + ", error=" + error + "]";
+	}
+}
@@ -0,0 +1,179 @@
+package us.kbase.auth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merges user detail lookups made by different threads within a short
+ * window into a single lookup.
+ *
+ * The first thread to look up users with a token opens a batch and waits for
+ * the window to pass. Any thread that looks up users with the same token
+ * while the batch is open adds its user names to the batch and waits. The
+ * first thread then closes the batch, looks up each unique user name once,
+ * and hands the results to all the waiting threads. Batches are keyed by
+ * token since the visibility of a user's details depends on the token.
+ *
+ * The first thread doesn't wait if no other lookup is in flight, since then
+ * nobody is likely to join the batch.
+ *
+ * This class is thread safe.
+ */
+final class UserLookupBatcher {
+
+	final private AuthConfig config;
+	final private long windowMSec;
+	final private ConcurrentMap<String, Batch> open =
+			new ConcurrentHashMap<String, Batch>();
+	// the number of threads in lookup()
+	final private AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * Create a new batcher.
+	 * @param config the configuration to use for lookups.
+	 * @param windowMSec how long a batch stays open, in milliseconds.
+	 */
+	UserLookupBatcher(final AuthConfig config, final int windowMSec) {
+		if (windowMSec < 1) {
+			throw new IllegalArgumentException("windowMSec must be > 0");
+		}
+		this.config = config;
+		this.windowMSec = windowMSec;
+	}
+
+	/**
+	 * Look up users, possibly together with lookups from other threads.
+	 * @param names the user names to look up.
+	 * @param token the token to use for the lookup.
+	 * @return a mapping of user name to the result of the lookup for that
+	 * user, containing exactly the given names.
+	 * @throws IOException if the thread is interrupted while waiting for the
+	 * lookups.
+	 */
+	Map<String, UserDetailResult> lookup(
+			final Set<String> names,
+			final AuthToken token)
+			throws IOException {
+		active.incrementAndGet();
+		try {
+			return lookup(names, token, token.toString());
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	private Map<String, UserDetailResult> lookup(
+			final Set<String> names,
+			final AuthToken token,
+			final String key)
+			throws IOException {
+		while (true) {
+			Batch batch = open.get(key);
+			boolean leader = false;
+			if (batch == null) {
+				final Batch b = new Batch();
+				batch = open.putIfAbsent(key, b);
+				if (batch == null) {
+					batch = b;
+					leader = true;
+				}
+			}
+			if (!batch.add(names)) {
+				// the batch closed before the names could be added
+				open.remove(key, batch);
+				continue;
+			}
+			if (leader) {
+				batch.run(key, token);
+			}
+			return batch.await(names);
+		}
+	}
+
+	private class Batch {
+
+		final private Set<String> names = new HashSet<String>();
+		final private CountDownLatch done = new CountDownLatch(1);
+		private boolean closed = false;
+		private Map<String, UserDetailResult> results;
+		private Throwable error;
+
+		synchronized boolean add(final Set<String> newNames) {
+			if (closed) {
+				return false;
+			}
+			names.addAll(newNames);
+			return true;
+		}
+
+		private synchronized Set<String> close() {
+			closed = true;
+			return names;
+		}
+
+		void run(final String key, final AuthToken token)
+				throws IOException {
+			try {
+				if (active.get() > 1) {
+					Thread.sleep(windowMSec);
+				}
+			} catch (InterruptedException e) {
+				// look up the names anyway, other threads are waiting
+				Thread.currentThread().interrupt();
+			} finally {
+				open.remove(key, this);
+			}
+			final Set<String> batch = close();
+			try {
+				results = AuthService.resolveUserDetails(batch, token, config);
+			} catch (InterruptedIOException e) {
+				// the waiting threads see the interruption as failed lookups
+				results = new HashMap<String, UserDetailResult>();
+				for (final String name: batch) {
+					results.put(name, new UserDetailResult(name, e));
+				}
+				throw e;
+			} catch (RuntimeException e) {
+				error = e;
+				throw e;
+			} catch (Error e) {
+				error = e;
+				throw e;
+			} finally {
+				done.countDown();
+			}
+		}
+
+		Map<String, UserDetailResult> await(final Set<String> names)
+				throws IOException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				final InterruptedIOException ie = new InterruptedIOException(
+						"Interrupted while waiting for batched user lookup");
+				ie.initCause(e);
+				throw ie;
+			}
+			if (results == null) {
+				// each waiter gets its own stack trace
+				throw new RuntimeException(
+						"The batched user lookup failed", error);
+			}
+			final Map<String, UserDetailResult> ret =
+					new HashMap<String, UserDetailResult>();
+			for (final String name: names) {
+				ret.put(name, results.get(name));
+			}
+			return ret;
+		}
+	}
+}
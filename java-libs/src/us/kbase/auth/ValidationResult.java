@@ -0,0 +1,54 @@
+package us.kbase.auth;
+
+/**
+ * The result of validating a token. Besides whether the token is valid, the
+ * result tells whether the answer is degraded, i.e. the token was reported
+ * as valid based on a previous verification because the authorization
+ * server could not be reached. See
+ * {@link AuthConfig#withStaleWhileErrorWindow(int)}.
+ *
+ * Instances are immutable.
+ */
+public final class ValidationResult {
+
+	final static ValidationResult VALID = new ValidationResult(true, false);
+	final static ValidationResult INVALID = new ValidationResult(false, false);
+	final static ValidationResult DEGRADED = new ValidationResult(true, true);
+
+	final private boolean valid;
+	final private boolean degraded;
+
+	private ValidationResult(final boolean valid, final boolean degraded) {
+		this.valid = valid;
+		this.degraded = degraded;
+	}
+
+	static ValidationResult of(final boolean valid) {
+		return valid ? VALID : INVALID;
+	}
+
+	/**
+	 * Returns whether the token is valid.
+	 * @return <code>true</code> if the token is valid, <code>false</code>
+	 * otherwise.
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * Returns whether the token was reported as valid based on a previous
+	 * verification because the authorization server could not be reached.
+	 * @return <code>true</code> if the answer is degraded,
+	 * <code>false</code> if it is based on a current verification.
+	 */
+	public boolean isDegraded() {
+		return degraded;
+	}
+
+	@Override
+	public String toString() {
+		return "ValidationResult [valid=" + valid + ", degraded=" +
+				degraded + "]";
+	}
+}
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sun.net.httpserver.HttpServer;
+
+import us.kbase.auth.AuthRequest;
+import us.kbase.auth.AuthResponse;
+import us.kbase.auth.AuthTransport;
+import us.kbase.auth.HttpClientTransport;
+import us.kbase.auth.HttpURLConnectionTransport;
+
+/**
+ * Compares the legacy HttpURLConnection transport with the HttpClient
+ * transport by sending token validation requests to a local mock auth
+ * server that answers after a fixed delay.
+ *
+ * Each transport is run with a number of blocking client threads. The
+ * throughput, latency percentiles and the number of connections the server
+ * saw are reported.
+ *
+ * Note that the JDK's built in server only speaks HTTP/1.1, so this
+ * benchmark measures the clients' connection handling and threading rather
+ * than HTTP/2 multiplexing, which requires a TLS server that supports it.
+ *
+ * Usage: java HttpTransportBenchmark [requests] [concurrency] [delayms]
+ */
+public class HttpTransportBenchmark {
+
+	private static final byte[] BODY = ("{\"user_id\": \"kbasetest\", " +
+			"\"name\": \"KBase Test Account\"}").getBytes(StandardCharsets.UTF_8);
+	private static final Map<String, String> HEADERS = Collections.singletonMap(
+			"Content-Type", "application/x-www-form-urlencoded");
+
+	public static void main(String[] args) throws Exception {
+		final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		final int concurrency = args.length > 1 ?
+				Integer.parseInt(args[1]) : 32;
+		final int delay = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		// otherwise Nagle's algorithm and delayed acks dominate the latency
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		final Set<Integer> connections =
+				Collections.synchronizedSet(new HashSet<Integer>());
+		final HttpServer server = HttpServer.create(
+				new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", ex -> {
+			connections.add(ex.getRemoteAddress().getPort());
+			ex.getRequestBody().readAllBytes();
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			ex.sendResponseHeaders(200, BODY.length);
+			ex.getResponseBody().write(BODY);
+			ex.close();
+		});
+		server.start();
+		final URL url = new URL("http://localhost:" +
+				server.getAddress().getPort() + "/Sessions/Login");
+		System.out.println(String.format(
+				"requests: %s concurrency: %s server delay: %sms",
+				requests, concurrency, delay));
+		try {
+			for (int round = 0; round < 2; round++) { // first round is warmup
+				final boolean print = round == 1;
+				connections.clear();
+				runBlocking("HttpURLConnection", new HttpURLConnectionTransport(
+						concurrency), url, requests, concurrency, print,
+						connections);
+				connections.clear();
+				runBlocking("HttpClient", new HttpClientTransport(), url,
+						requests, concurrency, print, connections);
+				connections.clear();
+				runBlocking("HttpClient 1.1", new HttpClientTransport(
+						HttpClient.newBuilder().version(
+								HttpClient.Version.HTTP_1_1).build()), url,
+						requests, concurrency, print, connections);
+			}
+		} finally {
+			server.stop(0);
+			System.exit(0);
+		}
+	}
+
+	private static AuthRequest request(final URL url, final int i) {
+		return new AuthRequest("POST", url, HEADERS,
+				("token=tok" + i + "&fields=user_id")
+				.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void readAndClose(final AuthResponse r) throws IOException {
+		try {
+			final InputStream in = r.getBody();
+			while (in.read() != -1) {}
+			if (r.getCode() != 200) {
+				throw new IOException("Bad code " + r.getCode());
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	private static void runBlocking(
+			final String name,
+			final AuthTransport transport,
+			final URL url,
+			final int requests,
+			final int concurrency,
+			final boolean print,
+			final Set<Integer> connections)
+			throws Exception {
+		final long[] latencies = new long[requests];
+		final ExecutorService threads = Executors.newFixedThreadPool(
+				concurrency);
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		final long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			final int n = i;
+			futures.add(threads.submit(() -> {
+				final long s = System.nanoTime();
+				readAndClose(transport.send(request(url, n)));
+				latencies[n] = System.nanoTime() - s;
+				return null;
+			}));
+		}
+		for (final Future<?> f: futures) {
+			f.get();
+		}
+		final long elapsed = System.nanoTime() - start;
+		threads.shutdown();
+		if (print) {
+			report(name, latencies, elapsed, connections.size());
+		}
+	}
+
+	private static void report(
+			final String name,
+			final long[] latencies,
+			final long elapsed,
+			final int connections) {
+		final long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		System.out.println(String.format(
+				"%-18s %8.0f req/s  p50 %6.2fms  p99 %6.2fms  connections %s",
+				name, latencies.length / (elapsed / 1e9),
+				sorted[sorted.length / 2] / 1e6,
+				sorted[sorted.length * 99 / 100] / 1e6, connections));
+	}
+}
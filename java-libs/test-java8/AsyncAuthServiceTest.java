@@ -0,0 +1,169 @@
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import us.kbase.auth.AsyncAuthService;
+import us.kbase.auth.AuthConfig;
+import us.kbase.auth.AuthException;
+import us.kbase.auth.AuthRequest;
+import us.kbase.auth.AuthResponse;
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.AuthTransport;
+import us.kbase.auth.AuthUser;
+import us.kbase.auth.TokenFormatException;
+
+/* Tests the asynchronous client against an in memory transport, so unlike
+ * AuthServiceTest these tests don't need an auth server.
+ */
+public class AsyncAuthServiceTest {
+
+	// answers logins and token lookups with the same user
+	private static class FakeTransport implements AuthTransport {
+
+		final List<AuthRequest> posts =
+				Collections.synchronizedList(new ArrayList<AuthRequest>());
+		volatile int code = 200;
+
+		@Override
+		public AuthResponse send(AuthRequest request) {
+			if (!request.getMethod().equals("POST")) {
+				// the service url check
+				return response(401,
+						"{\"user_id\": null, \"error_msg\": \"no user\"}");
+			}
+			posts.add(request);
+			return response(code, "{\"user_id\": \"fakeuser\", " +
+					"\"name\": \"Fake User\", \"email\": \"f@u.org\", " +
+					"\"groups\": [], \"verified\": true}");
+		}
+
+		private static AuthResponse response(final int code, final String body) {
+			return new AuthResponse(code, "OK",
+					new ByteArrayInputStream(body.getBytes()));
+		}
+	}
+
+	// runs tasks on the calling thread and counts them
+	private static class CountingExecutor implements Executor {
+
+		final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void execute(final Runnable r) {
+			count.incrementAndGet();
+			r.run();
+		}
+	}
+
+	// a token no other test uses, since the caches are shared. The server
+	// expiry is a year after the token was issued.
+	private static AuthToken newToken() throws Exception {
+		final long expiry = System.currentTimeMillis() / 1000 +
+				364L * 24 * 60 * 60;
+		return new AuthToken("un=fakeuser|tokenid=" + UUID.randomUUID() +
+				"|expiry=" + expiry + "|client_id=fakeuser|token_type=Bearer" +
+				"|SigningSubject=https://nexus.api.globusonline.org/goauth/" +
+				"keys/abc|sig=0123456789abcdef");
+	}
+
+	private static Throwable failure(final CompletableFuture<?> f) {
+		assertTrue("future not complete", f.isDone());
+		final Throwable[] t = new Throwable[1];
+		f.whenComplete((r, e) -> t[0] = e);
+		return t[0];
+	}
+
+	@Test
+	public void validateTokenFromCache() throws Exception {
+		final FakeTransport t = new FakeTransport();
+		final CountingExecutor e = new CountingExecutor();
+		final AsyncAuthService as = new AsyncAuthService(
+				new AuthConfig().withTransport(t), e);
+		final AuthToken token = newToken();
+		assertThat("token valid", as.validateToken(token).get(), is(true));
+		assertThat("incorrect executor count", e.count.get(), is(1));
+		final CompletableFuture<Boolean> f = as.validateToken(token);
+		assertThat("future not complete", f.isDone(), is(true));
+		assertThat("token valid", f.get(), is(true));
+		assertThat("incorrect executor count", e.count.get(), is(1));
+		assertThat("incorrect request count", t.posts.size(), is(1));
+	}
+
+	@Test
+	public void getUserFromTokenFromCache() throws Exception {
+		final FakeTransport t = new FakeTransport();
+		final CountingExecutor e = new CountingExecutor();
+		final AsyncAuthService as = new AsyncAuthService(
+				new AuthConfig().withTransport(t), e);
+		final AuthToken token = newToken();
+		assertThat("incorrect user", as.getUserFromToken(token).get()
+				.getUserId(), is("fakeuser"));
+		assertThat("incorrect executor count", e.count.get(), is(1));
+		final CompletableFuture<AuthUser> f = as.getUserFromToken(token);
+		assertThat("future not complete", f.isDone(), is(true));
+		assertThat("incorrect user", f.get().getFullName(), is("Fake User"));
+		assertThat("incorrect executor count", e.count.get(), is(1));
+		assertThat("incorrect request count", t.posts.size(), is(1));
+	}
+
+	@Test
+	public void loginFromCache() throws Exception {
+		final FakeTransport t = new FakeTransport();
+		final CountingExecutor e = new CountingExecutor();
+		final AsyncAuthService as = new AsyncAuthService(
+				new AuthConfig().withTransport(t).withLoginCacheWindow(60), e);
+		final String pwd = UUID.randomUUID().toString();
+		assertThat("incorrect user", as.login("fakeuser", pwd).get()
+				.getUserId(), is("fakeuser"));
+		assertThat("incorrect executor count", e.count.get(), is(1));
+		final CompletableFuture<AuthUser> f = as.login("fakeuser", pwd);
+		assertThat("future not complete", f.isDone(), is(true));
+		assertThat("incorrect user", f.get().getUserId(), is("fakeuser"));
+		assertThat("incorrect executor count", e.count.get(), is(1));
+		as.login("fakeuser", pwd + "a").get();
+		assertThat("incorrect executor count", e.count.get(), is(2));
+		assertThat("incorrect request count", t.posts.size(), is(2));
+	}
+
+	@Test
+	public void failuresWrapped() throws Exception {
+		final FakeTransport t = new FakeTransport();
+		final CountingExecutor e = new CountingExecutor();
+		final AsyncAuthService as = new AsyncAuthService(
+				new AuthConfig().withTransport(t), e);
+		// fails before the executor is used
+		Throwable err = failure(as.validateToken("not a token"));
+		assertThat("incorrect exception", err.getClass().getName(),
+				is(CompletionException.class.getName()));
+		assertTrue("incorrect cause",
+				err.getCause() instanceof TokenFormatException);
+		assertThat("incorrect executor count", e.count.get(), is(0));
+		// fails on the executor
+		t.code = 401;
+		err = failure(as.getUserFromToken(newToken()));
+		assertThat("incorrect exception", err.getClass().getName(),
+				is(CompletionException.class.getName()));
+		assertTrue("incorrect cause", err.getCause() instanceof AuthException);
+		assertThat("incorrect executor count", e.count.get(), is(1));
+		try {
+			as.validateToken("not a token").join();
+			fail("joined failed future");
+		} catch (CompletionException ce) {
+			assertTrue("incorrect cause",
+					ce.getCause() instanceof TokenFormatException);
+		}
+	}
+}
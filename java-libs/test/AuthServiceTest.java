@@ -15,32 +15,53 @@ import static org.junit.matchers.JUnitMatchers.*;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLEncoder;
 
 import javax.net.ssl.HttpsURLConnection;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import us.kbase.auth.AuthConfig;
+import us.kbase.auth.AuthRequest;
+import us.kbase.auth.AuthResponse;
 import us.kbase.auth.AuthService;
 import us.kbase.auth.AuthToken;
+import us.kbase.auth.AuthTransport;
 import us.kbase.auth.AuthUser;
+import us.kbase.auth.AuthUserField;
+import us.kbase.auth.Clock;
 import us.kbase.auth.AuthException;
 import us.kbase.auth.ConfigurableAuthService;
+import us.kbase.auth.HttpURLConnectionTransport;
 import us.kbase.auth.RefreshingToken;
+import us.kbase.auth.RefreshingTokenManager;
 import us.kbase.auth.StringCache;
 import us.kbase.auth.TokenCache;
 import us.kbase.auth.TokenException;
 import us.kbase.auth.TokenExpiredException;
 import us.kbase.auth.TokenFormatException;
 import us.kbase.auth.UserDetail;
+import us.kbase.auth.UserDetailResult;
+import us.kbase.auth.ValidationResult;
 
 public class AuthServiceTest {
 	private static final String TEST_UID = "kbasetest";
@@ -250,13 +271,115 @@ public class AuthServiceTest {
 		Thread.sleep(50);
 		sc.putString(testStrings.get(3));
 		assertThat("failure expired string is still in cache", sc.hasString(testStrings.get(0)), is(false));
-		boolean[] expected = {false, false, true, true};
+		boolean[] expected = {false, true, true, true};
 		for (int i = 0; i < expected.length; i++) {
 			assertEquals("failure - cache retained wrong strings", expected[i], sc.hasString(testStrings.get(i)));
 			
 		}
 	}
 	
+	private static class ManualClock extends Clock {
+		
+		private volatile long now = System.currentTimeMillis();
+		
+		@Override
+		public long millis() {
+			return now;
+		}
+		
+		public void advance(long msec) {
+			now += msec;
+		}
+	}
+	
+	@Test
+	public void stringCacheExpiresWithClock() {
+		ManualClock clock = new ManualClock();
+		StringCache sc = new StringCache(2, 4, clock);
+		sc.setExpiry(2);
+		sc.putString(testStrings.get(0));
+		clock.advance(2000);
+		assertThat("string present at expiry time", sc.hasString(testStrings.get(0)), is(true));
+		clock.advance(1);
+		assertThat("string expired", sc.hasString(testStrings.get(0)), is(false));
+		sc.putString(testStrings.get(0));
+		assertThat("string added again", sc.hasString(testStrings.get(0)), is(true));
+	}
+	
+	@Test
+	public void tokenCacheExpiresWithClock() throws Exception {
+		ManualClock clock = new ManualClock();
+		TokenCache tc = new TokenCache(2, 4, false, clock);
+		AuthToken t = new AuthToken(someTokens.get(0).toString(), 3600);
+		clock.advance(t.getIssueDate().getTime() + 3600 * 1000 - clock.millis());
+		tc.putValidToken(t);
+		assertTrue("token cached at expiry time", tc.hasToken(t));
+		clock.advance(1);
+		try {
+			tc.hasToken(t);
+			fail("cache returned expired token");
+		} catch (TokenExpiredException e) {
+			assertThat("correct exception message", e.getLocalizedMessage(), is("token expired"));
+		}
+	}
+	
+	@Test
+	public void stringCacheRemovesExpiredStrings() {
+		ManualClock clock = new ManualClock();
+		StringCache sc = new StringCache(3, 4, clock);
+		sc.setExpiry(2);
+		sc.putString(testStrings.get(0));
+		sc.putString(testStrings.get(1));
+		assertThat("live strings", sc.getLiveCount(), is(2));
+		clock.advance(3000);
+		assertThat("expired strings", sc.getExpiredCount(), is(2));
+		assertThat("live strings", sc.getLiveCount(), is(0));
+		sc.putString(testStrings.get(2));
+		assertThat("expired strings removed", sc.getExpiredCount(), is(0));
+		assertThat("live strings", sc.getLiveCount(), is(1));
+	}
+	
+	@Test
+	public void stringCacheExpiredStringsDontTakeUnexpiredPlaces() {
+		ManualClock clock = new ManualClock();
+		StringCache sc = new StringCache(2, 3, clock);
+		sc.setExpiry(2);
+		sc.putString(testStrings.get(0));
+		clock.advance(1500);
+		//touch to reset touched time of string, but not added time
+		assertThat("failure - missing non-expired String", sc.hasString(testStrings.get(0)), is(true));
+		clock.advance(500);
+		sc.putString(testStrings.get(1));
+		assertThat("string not expired at expiry time", sc.getExpiredCount(), is(0));
+		clock.advance(1);
+		assertThat("string expired", sc.getExpiredCount(), is(1));
+		//expired strings are removed as soon as a string is added, so don't
+		//take the place of unexpired strings
+		sc.putString(testStrings.get(2));
+		sc.putString(testStrings.get(3));
+		boolean[] expected = {false, true, true, true};
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("failure - cache retained wrong strings", expected[i], sc.hasString(testStrings.get(i)));
+		}
+	}
+	
+	@Test
+	public void tokenCacheRemovesExpiredTokens() throws Exception {
+		AuthToken t1 = new AuthToken(someTokens.get(0).toString(), 3600);
+		AuthToken t2 = new AuthToken(someTokens.get(1).toString());
+		ManualClock clock = new ManualClock();
+		clock.advance(t1.getIssueDate().getTime() - clock.millis());
+		TokenCache tc = new TokenCache(2, 4, false, clock);
+		tc.putValidToken(t1);
+		assertThat("live tokens", tc.getLiveCount(), is(1));
+		clock.advance(3602 * 1000);
+		assertThat("expired tokens", tc.getExpiredCount(), is(1));
+		assertThat("live tokens", tc.getLiveCount(), is(0));
+		tc.putValidToken(t2);
+		assertThat("expired tokens removed", tc.getExpiredCount(), is(0));
+		assertThat("live tokens", tc.getLiveCount(), is(1));
+	}
+	
 
 	// test AuthToken POJO stuff - make sure all fields are non-null
 	@Test
@@ -428,6 +551,30 @@ public class AuthServiceTest {
 				is(new URL("https://www.kbase.us/services/authorization/Sessions/Login")));
 		assertThat("correct full globus url", d.getGlobusGroupMembersURL(),
 				is(new URL("https://nexus.api.globusonline.org/groups/99d2a548-7218-11e2-adc0-12313d2d6e7f/members/")));
+		assertThat("correct rejected cache size",
+				d.getRejectedTokenCacheSize(), is(500));
+		assertThat("correct rejected cache max size",
+				d.getRejectedTokenCacheMaxSize(), is(1000));
+		assertThat("correct rejected cache expiry",
+				d.getRejectedTokenCacheExpiry(), is(60));
+		assertThat("correct token cache max staleness",
+				d.getTokenCacheMaxStaleness(), is(0));
+		assertThat("correct stale while error window",
+				d.getStaleWhileErrorWindow(), is(0));
+		assertThat("correct user detail concurrency",
+				d.getUserDetailConcurrency(), is(8));
+		assertThat("correct user lookup batch window",
+				d.getUserLookupBatchWindow(), is(0));
+		assertThat("correct max response size",
+				d.getMaxResponseSize(), is(1024 * 1024));
+		assertThat("correct profile cache expiry",
+				d.getProfileCacheExpiry(), is(300));
+		assertThat("correct trusted signing subjects",
+				d.getTrustedSigningSubjects().isEmpty(), is(true));
+		assertThat("correct signing key expiry",
+				d.getSigningKeyExpiry(), is(3600));
+		assertThat("correct login cache window",
+				d.getLoginCacheWindow(), is(0));
 		
 		//custom
 		RefreshingToken rt = AuthService.getRefreshingToken(
@@ -488,8 +635,197 @@ public class AuthServiceTest {
 			assertThat("correct exception message", npe.getLocalizedMessage(),
 					is("token cannot be null"));
 		}
+		
+		try {
+			new AuthConfig().withTokenCacheMaxStaleness(-1);
+			fail("made config with bad args");
+		} catch (IllegalArgumentException iae) {
+			assertThat("correct exception message", iae.getLocalizedMessage(),
+					is("seconds must be >= 0"));
+		}
+		
+		try {
+			new AuthConfig().withStaleWhileErrorWindow(-1);
+			fail("made config with bad args");
+		} catch (IllegalArgumentException iae) {
+			assertThat("correct exception message", iae.getLocalizedMessage(),
+					is("seconds must be >= 0"));
+		}
+		
+		try {
+			new AuthConfig().withUserDetailConcurrency(0);
+			fail("made config with bad args");
+		} catch (IllegalArgumentException iae) {
+			assertThat("correct exception message", iae.getLocalizedMessage(),
+					is("concurrency must be > 0"));
+		}
+		
+		try {
+			new AuthConfig().withUserLookupBatchWindow(-1);
+			fail("made config with bad args");
+		} catch (IllegalArgumentException iae) {
+			assertThat("correct exception message", iae.getLocalizedMessage(),
+					is("milliseconds must be >= 0"));
+		}
+		
+		try {
+			new AuthConfig().withMaxResponseSize(0);
+			fail("made config with bad args");
+		} catch (IllegalArgumentException iae) {
+			assertThat("correct exception message", iae.getLocalizedMessage(),
+					is("bytes must be > 0"));
+		}
+		
+		try {
+			new AuthConfig().withProfileCacheExpiry(-1);
+			fail("made config with bad args");
+		} catch (IllegalArgumentException iae) {
+			assertThat("correct exception message", iae.getLocalizedMessage(),
+					is("seconds must be >= 0"));
+		}
+		
+		try {
+			new AuthConfig().withTrustedSigningSubjects(
+					Arrays.asList("https://nexus.api.globusonline.org"));
+			fail("made config with bad args");
+		} catch (IllegalArgumentException iae) {
+			assertThat("correct exception message", iae.getLocalizedMessage(),
+					is("urlPrefixes must end with /: https://nexus.api.globusonline.org"));
+		}
+		
+		try {
+			new AuthConfig().withSigningKeyExpiry(0);
+			fail("made config with bad args");
+		} catch (IllegalArgumentException iae) {
+			assertThat("correct exception message", iae.getLocalizedMessage(),
+					is("seconds must be > 0"));
+		}
+		
+		try {
+			new AuthConfig().withLoginCacheWindow(-1);
+			fail("made config with bad args");
+		} catch (IllegalArgumentException iae) {
+			assertThat("correct exception message", iae.getLocalizedMessage(),
+					is("seconds must be >= 0"));
+		}
 	}
 
+	@Test
+	public void inMemoryTransport() throws Exception {
+		final List<AuthRequest> requests = new ArrayList<AuthRequest>();
+		AuthTransport t = new AuthTransport() {
+			
+			@Override
+			public AuthResponse send(AuthRequest request) {
+				requests.add(request);
+				String body = request.getMethod().equals("GET") ?
+						"{\"user_id\": null, \"error_msg\": \"no user\"}" :
+						"{\"user_id\": \"fakeuser\", \"name\": \"Fake User\"}";
+				return new AuthResponse(
+						request.getMethod().equals("GET") ? 401 : 200, "OK",
+						new ByteArrayInputStream(body.getBytes()));
+			}
+		};
+		ConfigurableAuthService cas = new ConfigurableAuthService(
+				new AuthConfig().withTransport(t));
+		AuthUser u = cas.getUserFromToken(testUser.getToken());
+		assertThat("incorrect user", u.getUserId(), is("fakeuser"));
+		assertThat("incorrect name", u.getFullName(), is("Fake User"));
+		assertThat("incorrect request count", requests.size(), is(2));
+		assertThat("incorrect method", requests.get(1).getMethod(), is("POST"));
+		assertThat("incorrect url", requests.get(1).getURL(),
+				is(new AuthConfig().getAuthLoginURL()));
+	}
+	
+	@Test
+	public void profileCachePerConfig() throws Exception {
+		ConfigurableAuthService one = new ConfigurableAuthService(
+				new AuthConfig().withTransport(fixedUserTransport("one")));
+		ConfigurableAuthService two = new ConfigurableAuthService(
+				new AuthConfig().withTransport(fixedUserTransport("two")));
+		AuthToken t = testUser.getToken();
+		assertThat("incorrect user", one.getUserFromToken(t).getUserId(),
+				is("one"));
+		assertThat("incorrect user", two.getUserFromToken(t).getUserId(),
+				is("two"));
+		assertThat("incorrect cached user", one.getUserFromToken(t)
+				.getUserId(), is("one"));
+	}
+	
+	// a transport where every token belongs to the same user
+	private static AuthTransport fixedUserTransport(final String user) {
+		return new AuthTransport() {
+			
+			@Override
+			public AuthResponse send(AuthRequest request) {
+				String body = request.getMethod().equals("GET") ?
+						"{\"user_id\": null, \"error_msg\": \"no user\"}" :
+						"{\"user_id\": \"" + user + "\"}";
+				return new AuthResponse(
+						request.getMethod().equals("GET") ? 401 : 200, "OK",
+						new ByteArrayInputStream(body.getBytes()));
+			}
+		};
+	}
+	
+	@Test
+	public void urlConnectionTransportReadTimeout() throws Exception {
+		// the OS accepts the connection but nothing ever responds
+		ServerSocket server = new ServerSocket(0);
+		try {
+			HttpURLConnectionTransport t =
+					new HttpURLConnectionTransport(1, 1000, 200);
+			try {
+				t.send(new AuthRequest("GET", new URL("http://localhost:" +
+						server.getLocalPort() + "/"), null, null));
+				fail("read from silent server");
+			} catch (SocketTimeoutException e) {
+				assertThat("correct exception message",
+						e.getLocalizedMessage(), is("Read timed out"));
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void urlConnectionTransportWaitsForConnection() throws Exception {
+		HttpServer server = HttpServer.create(
+				new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange ex) throws IOException {
+				byte[] body = "ok".getBytes();
+				ex.sendResponseHeaders(200, body.length);
+				ex.getResponseBody().write(body);
+				ex.close();
+			}
+		});
+		server.start();
+		try {
+			HttpURLConnectionTransport t =
+					new HttpURLConnectionTransport(1, 200, 1000);
+			AuthRequest req = new AuthRequest("GET", new URL("http://localhost:" +
+					server.getAddress().getPort() + "/"), null, null);
+			AuthResponse r = t.send(req);
+			try {
+				t.send(req);
+				fail("got a second connection");
+			} catch (SocketTimeoutException e) {
+				assertThat("correct exception message",
+						e.getLocalizedMessage(),
+						is("Timed out waiting for a connection to localhost"));
+			}
+			r.close();
+			r = t.send(req);
+			assertThat("incorrect code", r.getCode(), is(200));
+			r.close();
+		} finally {
+			server.stop(0);
+		}
+	}
+	
 	@Test
 	public void testGetUserFromTokenObject() throws Exception {
 		AuthToken t = new AuthToken(testUser.getToken().toString(), 400);
@@ -501,6 +837,174 @@ public class AuthServiceTest {
 		org.junit.Assert.assertNotNull("failure - getting user from a token object returned a null user", user);
 		assertEquals("failure - token expiration wasn't maintained", 400, user.getToken().getExpiryTime());
 	}
+	
+	@Test
+	public void getUserFromTokenFields() throws Exception {
+		AuthToken t = testUser.getToken();
+		AuthUser user = AuthService.getUserFromToken(t,
+				EnumSet.of(AuthUserField.GROUPS));
+		assertThat("incorrect user id", user.getUserId(), is(TEST_UID));
+		assertThat("incorrect groups", user.getGroups(), hasItems(GROUPS));
+		
+		user = new ConfigurableAuthService().getUserFromToken(t,
+				EnumSet.of(AuthUserField.EMAIL, AuthUserField.FULL_NAME));
+		assertThat("incorrect user id", user.getUserId(), is(TEST_UID));
+		assertThat("incorrect email", user.getEmail(), is(EMAIL));
+		assertThat("incorrect name", user.getFullName(), is(FULL_NAME));
+		assertThat("incorrect groups", user.getGroups(), hasItems(GROUPS));
+		try {
+			user.getGroups().add("foo");
+			fail("modified cached groups");
+		} catch (UnsupportedOperationException uoe) {}
+	}
+	
+	@Test
+	public void parseToken() throws Exception {
+		String tokenStr = testUser.getTokenString();
+		AuthToken t = AuthToken.parse(tokenStr);
+		assertThat("incorrect token", t.toString(), is(tokenStr));
+		assertTrue("token not reused", t == AuthToken.parse(tokenStr));
+		try {
+			AuthToken.parse("un=foo|expiry=1");
+			fail("parsed bad token");
+		} catch (TokenFormatException tfe) {
+			assertThat("correct exception message", tfe.getLocalizedMessage(),
+					is("Auth token is in the incorrect format - might be missing the signature?"));
+		}
+	}
+	
+	@Test
+	public void parseTokenErrors() throws Exception {
+		final String nosig = "Auth token is in the incorrect format - " +
+				"might be missing the signature?";
+		final String[][] cases = {
+				// token, exception message
+				{"", "Auth token is in the incorrect format, near ''"},
+				{"a=b||c=d|expiry=1|sig=abc",
+					"Auth token is in the incorrect format, near ''"},
+				{"k==v|expiry=1|sig=abc",
+					"Auth token is in the incorrect format, near 'k==v'"},
+				{"un=|expiry=1|sig=abc",
+					"Auth token is in the incorrect format, near 'un='"},
+				{"un=foo|expiry=1|sig=",
+					"Auth token is in the incorrect format, near 'sig='"},
+				{"=|expiry=1|sig=abc",
+					"Auth token is in the incorrect format, near '='"},
+				{"un=foo|expiry=1", nosig},
+				{"un=foo|expiry=1|", nosig},
+				{"sig=abc|expiry=1", nosig},
+				{"un=foo|sig=abc", "Auth token is in the incorrect format - " +
+					"missing the expiry time"},
+				{"expiry=soon|sig=abc",
+					"Auth token is in the incorrect format, near 'expiry=soon'"}
+		};
+		for (String[] c: cases) {
+			try {
+				new AuthToken(c[0]);
+				fail("parsed bad token " + c[0]);
+			} catch (TokenFormatException tfe) {
+				assertThat("incorrect exception message for " + c[0],
+						tfe.getLocalizedMessage(), is(c[1]));
+			}
+		}
+		// trailing '|'s and '='s and leading '='s are ignored, as
+		// String.split() would
+		final String[][] good = {
+				// token, signature
+				{"un=foo|expiry=1|sig=abc|", "abc"},
+				{"un=foo|expiry=1|sig=abc||", "abc"},
+				{"un=foo|expiry=1|sig=abc=", "abc"},
+				{"=foo|expiry=1|sig=abc", "abc"}
+		};
+		for (String[] g: good) {
+			assertThat("incorrect signature for " + g[0],
+					new AuthToken(g[0]).getSignature(), is(g[1]));
+		}
+	}
+	
+	@Test
+	public void parseTokenForgeries() throws Exception {
+		// only the text before the signature is signed, so fields that
+		// follow it or repeat a signed field could forge a token
+		final String data = "un=alice|tokenid=t1|expiry=1|token_type=Bearer";
+		final String repeated = "Auth token is in the incorrect format - " +
+				"repeated field ";
+		final String notLast = "Auth token is in the incorrect format - " +
+				"the signature must be the last field";
+		final String[][] cases = {
+				// token, exception message
+				{data + "|sig=abc|client_id=mallory", notLast},
+				{data + "|sig=abc|foo=bar", notLast},
+				{data + "|sig=abc|un=mallory|client_id=mallory",
+					repeated + "'un'"},
+				{data + "|sig=abc|sig=def", repeated + "'sig'"},
+				{data + "|un=mallory|sig=abc", repeated + "'un'"},
+				{data + "|expiry=2|sig=abc", repeated + "'expiry'"},
+				{data + "|client_id=a|client_id=b|sig=abc",
+					repeated + "'client_id'"}
+		};
+		for (String[] c: cases) {
+			try {
+				new AuthToken(c[0]);
+				fail("parsed forged token " + c[0]);
+			} catch (TokenFormatException tfe) {
+				assertThat("incorrect exception message for " + c[0],
+						tfe.getLocalizedMessage(), is(c[1]));
+			}
+		}
+	}
+	
+	@Test
+	public void parseTokenIssueDateLeapDay() throws Exception {
+		final long[][] cases = {
+				// expiry, issue date, in seconds
+				// 2016-02-29T12:00:00Z, 2015-03-01T12:00:00Z
+				{1456747200L, 1425211200L},
+				// 2017-02-28T12:00:00Z, 2016-02-29T12:00:00Z
+				{1488283200L, 1456747200L},
+				// 2016-03-01T00:00:00Z, 2015-03-02T00:00:00Z
+				{1456790400L, 1425254400L}
+		};
+		for (long[] c: cases) {
+			assertThat("incorrect issue date for " + c[0],
+					new AuthToken("un=foo|expiry=" + c[0] + "|sig=abc")
+						.getIssueDate().getTime(), is(c[1] * 1000));
+		}
+	}
+	
+	@Test
+	public void localSignatureVerification() throws Exception {
+		AuthConfig c = new AuthConfig().withTrustedSigningSubjects(
+				Arrays.asList("https://nexus.api.globusonline.org/goauth/keys/"));
+		ConfigurableAuthService cas = new ConfigurableAuthService(c);
+		long count = AuthService.getLocalValidationCount();
+		AuthToken t = getUncachedToken();
+		assertTrue("token not valid", cas.validateToken(t));
+		assertThat("token not validated locally",
+				AuthService.getLocalValidationCount(), is(count + 1));
+		try {
+			c.withSigningKeyExpiry(10);
+			fail("changed config in use");
+		} catch (IllegalStateException ise) {
+			assertThat("correct exception message", ise.getLocalizedMessage(),
+					is("The signing key cache is already in use"));
+		}
+	}
+	
+	@Test
+	public void groupMembership() throws Exception {
+		AuthToken t = testUser.getToken();
+		for (String g: GROUPS) {
+			assertTrue("not a member of " + g, AuthService.isMember(t, g));
+		}
+		assertFalse("member of unknown group",
+				AuthService.isMember(t, "kbase_no_such_group_" + UUID.randomUUID()));
+		ConfigurableAuthService cas = new ConfigurableAuthService();
+		assertTrue("not a member of any group", cas.memberOfAny(t,
+				Arrays.asList("kbase_no_such_group", GROUPS[2])));
+		assertFalse("member of unknown groups", cas.memberOfAny(t,
+				Arrays.asList("kbase_no_such_group", "kbase_no_such_group2")));
+	}
 
 	@Test
 	public void testLogin() throws Exception {
@@ -511,6 +1015,20 @@ public class AuthServiceTest {
 		org.junit.Assert.assertNotNull("failure - logging in returned a null user", user);
 	}
 	
+	@Test
+	public void loginCache() throws Exception {
+		ConfigurableAuthService cas = new ConfigurableAuthService(
+				new AuthConfig().withLoginCacheWindow(30));
+		AuthUser user = cas.login(TEST_UID, TEST_PW);
+		assertTrue("login not remembered", user == cas.login(TEST_UID, TEST_PW));
+		try {
+			cas.login(TEST_UID, TEST_PW + "x");
+			fail("logged in with bad password");
+		} catch (AuthException ae) {
+			// expected
+		}
+	}
+	
 	@Test
 	public void testLoginWithExpiry() throws Exception {
 		AuthUser user = AuthService.login(TEST_UID, TEST_PW, 300);
@@ -643,6 +1161,59 @@ public class AuthServiceTest {
 		}
 	}
 	
+	@Test
+	public void testGetUserDetailResults() throws Exception {
+		AuthToken token = testUser.getToken();
+		List<String> users = new ArrayList<String>();
+		users.add("kbasetest");
+		users.add("kbasetest2");
+		users.add(null); // should ignore nulls
+		users.add("ahfueafavafueafhealuefhalfuafeuauflaef");
+		Map<String, UserDetailResult> res1 =
+				AuthService.fetchUserDetailResults(users, token);
+		Map<String, UserDetailResult> res2 = new ConfigurableAuthService(
+				new AuthConfig().withUserDetailConcurrency(1))
+				.fetchUserDetailResults(users, token);
+		Map<String, UserDetailResult> res3 = new ConfigurableAuthService(
+				new AuthConfig().withUserLookupBatchWindow(5))
+				.fetchUserDetailResults(users, token);
+		for (Map<String, UserDetailResult> res: Arrays.asList(res1, res2, res3)) {
+			assertThat("incorrect result count", res.size(), is(3));
+			UserDetailResult r = res.get("ahfueafavafueafhealuefhalfuafeuauflaef");
+			assertTrue("bad user lookup failed", r.isSuccess());
+			assertNull("bad user found somehow", r.getDetail());
+			r = res.get("kbasetest2");
+			assertTrue("lookup failed", r.isSuccess());
+			assertThat("email doesn't match", r.getDetail().getEmail(),
+					is("gaprice@lbl.gov"));
+		}
+	}
+	
+	@Test
+	public void userLookupBatchSkipsWindowWhenAlone() throws Exception {
+		AuthTransport t = new AuthTransport() {
+			
+			@Override
+			public AuthResponse send(AuthRequest request) {
+				String path = request.getURL().getPath();
+				String name = path.substring(path.lastIndexOf('/') + 1);
+				return new AuthResponse(200, "OK", new ByteArrayInputStream(
+						("{\"username\": \"" + name + "\", \"email\": \"e\", " +
+						"\"name\": \"N\"}").getBytes()));
+			}
+		};
+		ConfigurableAuthService cas = new ConfigurableAuthService(
+				new AuthConfig().withTransport(t)
+				.withUserLookupBatchWindow(60000));
+		long start = System.nanoTime();
+		Map<String, UserDetail> res = cas.fetchUserDetail(
+				Arrays.asList("user1", "user2"), someTokens.get(0));
+		assertTrue("waited for the batch window",
+				System.nanoTime() - start < 30000000000L);
+		assertThat("incorrect user", res.get("user2").getUserName(),
+				is("user2"));
+	}
+	
 	@Test
 	public void testGetUserDetailsWithRefreshingToken() throws Exception {
 		AuthConfig c = new AuthConfig();
@@ -716,6 +1287,214 @@ public class AuthServiceTest {
 		}
 	}
 	
+	@Test
+	public void tokenCacheMaxStaleness() throws Exception {
+		final List<AuthRequest> requests =
+				Collections.synchronizedList(new ArrayList<AuthRequest>());
+		AuthTransport tr = new AuthTransport() {
+			
+			@Override
+			public AuthResponse send(AuthRequest request) {
+				requests.add(request);
+				return new AuthResponse(200, "OK", new ByteArrayInputStream(
+						"{\"user_id\": \"fakeuser\"}".getBytes()));
+			}
+		};
+		ConfigurableAuthService as = new ConfigurableAuthService(
+				new AuthConfig().withTokenCacheMaxStaleness(2)
+				.withTransport(tr));
+		AuthToken t = getUncachedToken();
+		requests.clear(); // the service url check
+		assertThat("token valid", as.validateToken(t), is(true));
+		assertThat("validated with server", requests.size(), is(1));
+		Thread.sleep(1700);
+		// served from the cache while revalidating in the background
+		assertThat("stale token valid", as.validateToken(t), is(true));
+		for (int i = 0; i < 50 && requests.size() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertThat("revalidated in background", requests.size(), is(2));
+		Thread.sleep(1000);
+		// older than the max staleness unless the revalidation updated it
+		assertThat("revalidated token valid", as.validateToken(t), is(true));
+		assertThat("served from cache", requests.size(), is(2));
+	}
+	
+	@Test
+	public void revokedTokenNotAcceptedWhenServerDown() throws Exception {
+		// the server accepts the token, then rejects it, then goes down
+		final int[] codes = {200, 401, 503};
+		final List<AuthRequest> posts =
+				Collections.synchronizedList(new ArrayList<AuthRequest>());
+		AuthTransport tr = new AuthTransport() {
+			
+			@Override
+			public AuthResponse send(AuthRequest request) {
+				int code = 401;
+				if (request.getMethod().equals("POST")) {
+					posts.add(request);
+					code = codes[Math.min(posts.size(), codes.length) - 1];
+				}
+				String body = code == 200 ?
+						"{\"user_id\": \"fakeuser\"}" :
+						"{\"user_id\": null, \"error_msg\": \"no user\"}";
+				return new AuthResponse(code, "OK",
+						new ByteArrayInputStream(body.getBytes()));
+			}
+		};
+		ConfigurableAuthService as = new ConfigurableAuthService(
+				new AuthConfig().withTransport(tr)
+				.withTokenCacheMaxStaleness(1).withStaleWhileErrorWindow(60));
+		AuthToken t = getUncachedToken();
+		assertThat("token valid", as.validateToken(t), is(true));
+		Thread.sleep(1100);
+		assertThat("revoked token invalid", as.validateToken(t), is(false));
+		// a new configuration doesn't share the rejected token cache
+		as = new ConfigurableAuthService(new AuthConfig().withTransport(tr)
+				.withTokenCacheMaxStaleness(1).withStaleWhileErrorWindow(60));
+		final long degraded = AuthService.getDegradedValidationCount();
+		try {
+			as.validateToken(t);
+			fail("accepted revoked token with the server down");
+		} catch (IOException e) {
+			assertThat("incorrect exception message", e.getLocalizedMessage(),
+					is("Server comms failed. Code: 503 OK"));
+		}
+		assertThat("incorrect request count", posts.size(), is(3));
+		assertThat("degraded validation counted",
+				AuthService.getDegradedValidationCount(), is(degraded));
+	}
+	
+	@Test
+	public void degradedValidationReported() throws Exception {
+		final int[] codes = {200, 503};
+		final AtomicInteger posts = new AtomicInteger();
+		AuthTransport tr = new AuthTransport() {
+			
+			@Override
+			public AuthResponse send(AuthRequest request) {
+				int code = 401;
+				if (request.getMethod().equals("POST")) {
+					code = codes[Math.min(posts.incrementAndGet(),
+							codes.length) - 1];
+				}
+				String body = code == 200 ?
+						"{\"user_id\": \"fakeuser\"}" :
+						"{\"user_id\": null, \"error_msg\": \"no user\"}";
+				return new AuthResponse(code, "OK",
+						new ByteArrayInputStream(body.getBytes()));
+			}
+		};
+		ConfigurableAuthService as = new ConfigurableAuthService(
+				new AuthConfig().withTransport(tr)
+				.withTokenCacheMaxStaleness(1).withStaleWhileErrorWindow(60));
+		final long expiry = System.currentTimeMillis() / 1000 +
+				364L * 24 * 60 * 60;
+		AuthToken t = new AuthToken("un=fakeuser|tokenid=" +
+				UUID.randomUUID() + "|expiry=" + expiry +
+				"|client_id=fakeuser|token_type=Bearer|sig=abc");
+		ValidationResult r = as.validateTokenWithResult(t);
+		assertThat("token valid", r.isValid(), is(true));
+		assertThat("fresh answer", r.isDegraded(), is(false));
+		r = as.validateTokenWithResult(t);
+		assertThat("cached answer", r.isDegraded(), is(false));
+		Thread.sleep(1100);
+		final long degraded = AuthService.getDegradedValidationCount();
+		r = as.validateTokenWithResult(t);
+		assertThat("token valid with the server down", r.isValid(), is(true));
+		assertThat("degraded answer", r.isDegraded(), is(true));
+		assertThat("degraded validation counted",
+				AuthService.getDegradedValidationCount(), is(degraded + 1));
+		assertThat("boolean answer", as.validateToken(t), is(true));
+		assertThat("incorrect request count", posts.get(), is(3));
+	}
+	
+	@Test
+	public void rejectedTokenCacheOnlyForRejections() throws Exception {
+		final String noUser = "{\"user_id\": null, \"error_msg\": \"no user\"}";
+		final int[] code = {401};
+		final String[] body = {noUser};
+		AuthTransport tr = new AuthTransport() {
+			
+			@Override
+			public AuthResponse send(AuthRequest request) {
+				return new AuthResponse(code[0], "OK",
+						new ByteArrayInputStream(body[0].getBytes()));
+			}
+		};
+		ConfigurableAuthService as = new ConfigurableAuthService(
+				new AuthConfig().withTransport(tr));
+		final long expiry = System.currentTimeMillis() / 1000 +
+				364L * 24 * 60 * 60;
+		// timeouts and rate limiting are server failures
+		for (int c: new int[] {408, 429}) {
+			code[0] = c;
+			body[0] = noUser;
+			AuthToken t = new AuthToken("un=fakeuser|tokenid=" +
+					UUID.randomUUID() + "|expiry=" + expiry +
+					"|client_id=fakeuser|token_type=Bearer|sig=abc");
+			try {
+				as.validateToken(t);
+				fail("validated token with code " + c);
+			} catch (IOException e) {
+				assertThat("incorrect exception message",
+						e.getLocalizedMessage(),
+						is("Server comms failed. Code: " + c + " OK"));
+			}
+			assertThat("cached rejection for code " + c,
+					as.getRejectedTokenCache().hasToken(t), is(false));
+		}
+		// other failures don't accept the token but aren't cached
+		final Object[][] failures = {{400, noUser}, {200, "not json"}};
+		for (Object[] f: failures) {
+			code[0] = (Integer) f[0];
+			body[0] = (String) f[1];
+			AuthToken t = new AuthToken("un=fakeuser|tokenid=" +
+					UUID.randomUUID() + "|expiry=" + expiry +
+					"|client_id=fakeuser|token_type=Bearer|sig=abc");
+			assertThat("token valid", as.validateToken(t), is(false));
+			assertThat("cached rejection for " + f[1],
+					as.getRejectedTokenCache().hasToken(t), is(false));
+		}
+		for (int c: new int[] {401, 403}) {
+			code[0] = c;
+			body[0] = noUser;
+			AuthToken t = new AuthToken("un=fakeuser|tokenid=" +
+					UUID.randomUUID() + "|expiry=" + expiry +
+					"|client_id=fakeuser|token_type=Bearer|sig=abc");
+			assertThat("token valid", as.validateToken(t), is(false));
+			assertThat("rejection not cached for code " + c,
+					as.getRejectedTokenCache().hasToken(t), is(true));
+		}
+	}
+	
+	@Test
+	public void rejectedTokenCache() throws Exception {
+		AuthConfig c = new AuthConfig().withRejectedTokenCacheSize(1, 2)
+				.withRejectedTokenCacheExpiry(2);
+		ConfigurableAuthService as = new ConfigurableAuthService(c);
+		String bad = testUser.getToken() + "a";
+		assertThat("bad token rejected", as.validateToken(bad), is(false));
+		assertThat("no cache hits", as.getRejectedTokenCache().getHitCount(),
+				is(0L));
+		assertThat("bad token rejected", as.validateToken(bad), is(false));
+		assertThat("cache hit", as.getRejectedTokenCache().getHitCount(),
+				is(1L));
+		assertThat("good token accepted",
+				as.validateToken(testUser.getToken()), is(true));
+		Thread.sleep(2100);
+		assertThat("bad token rejected", as.validateToken(bad), is(false));
+		assertThat("cache entry expired",
+				as.getRejectedTokenCache().getHitCount(), is(1L));
+		try {
+			c.withRejectedTokenCacheExpiry(10);
+			fail("changed rejected token cache in use");
+		} catch (IllegalStateException ise) {
+			assertThat("correct exception message", ise.getLocalizedMessage(),
+					is("The rejected token cache is already in use"));
+		}
+	}
+	
 	@Test
 	public void refreshToken() throws Exception {
 		RefreshingToken rt = AuthService.getRefreshingToken(
@@ -743,6 +1522,154 @@ public class AuthServiceTest {
 		assertTrue("token different after 6s", !t4.toString().equals(t1.toString()));
 	}
 	
+	// a transport where each login returns a new token
+	private static class LoginTransport implements AuthTransport {
+		
+		final AtomicInteger logins = new AtomicInteger();
+		volatile int code = 200;
+		// if set, logins after the first wait for the latch
+		volatile CountDownLatch hang = null;
+		
+		@Override
+		public AuthResponse send(AuthRequest request) throws IOException {
+			if (request.getMethod().equals("GET")) { // the service url check
+				return new AuthResponse(401, "OK", new ByteArrayInputStream(
+						"{\"user_id\": null, \"error_msg\": \"no user\"}"
+						.getBytes()));
+			}
+			if (logins.incrementAndGet() > 1 && hang != null) {
+				try {
+					hang.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+			final long expiry = System.currentTimeMillis() / 1000 +
+					364L * 24 * 60 * 60;
+			final String token = "un=fakeuser|tokenid=" + UUID.randomUUID() +
+					"|expiry=" + expiry + "|client_id=fakeuser" +
+					"|token_type=Bearer|SigningSubject=https://x/keys/k" +
+					"|sig=abc";
+			return new AuthResponse(code, "OK", new ByteArrayInputStream(
+					("{\"user_id\": \"fakeuser\", \"token\": \"" + token +
+					"\"}").getBytes()));
+		}
+	}
+	
+	@Test
+	public void refreshingTokenSwappedInBackground() throws Exception {
+		LoginTransport lt = new LoginTransport();
+		RefreshingToken rt = new ConfigurableAuthService(
+				new AuthConfig().withTransport(lt))
+				.getRefreshingToken("fakeuser", "pwd", 1);
+		AuthToken t1 = rt.getToken();
+		for (int i = 0; i < 10000; i++) {
+			assertTrue("token changed", rt.getToken() == t1);
+		}
+		assertThat("logged in by getToken", lt.logins.get(), is(1));
+		// refreshed after three quarters of the interval
+		Thread.sleep(1000);
+		assertThat("not refreshed", lt.logins.get(), is(2));
+		AuthToken t2 = rt.getToken();
+		assertTrue("token not swapped", !t2.toString().equals(t1.toString()));
+		assertTrue("token changed", rt.getToken() == t2);
+		assertThat("logged in by getToken", lt.logins.get(), is(2));
+	}
+	
+	// calls getToken(), which starts a refresh that is due, until the token
+	// has started the given number of logins
+	private static void awaitLogins(
+			RefreshingToken rt,
+			LoginTransport lt,
+			int logins)
+			throws Exception {
+		while (lt.logins.get() < logins) {
+			rt.getToken();
+			Thread.yield();
+		}
+	}
+	
+	@Test
+	public void refreshingTokenBacksOff() throws Exception {
+		ManualClock clock = new ManualClock();
+		LoginTransport lt = new LoginTransport();
+		RefreshingToken rt = new ConfigurableAuthService(new AuthConfig()
+				.withTransport(lt).withClock(clock))
+				.getRefreshingToken("fakeuser", "pwd", 1);
+		AuthToken t1 = rt.getToken();
+		lt.code = 503;
+		// refreshes fail at 0.75s and are retried at 1.75s and 3.75s
+		clock.advance(750);
+		awaitLogins(rt, lt, 2);
+		clock.advance(999);
+		for (int i = 0; i < 10000; i++) {
+			rt.getToken();
+		}
+		assertThat("retried early", lt.logins.get(), is(2));
+		clock.advance(1);
+		awaitLogins(rt, lt, 3);
+		clock.advance(1999);
+		for (int i = 0; i < 10000; i++) {
+			rt.getToken();
+		}
+		assertThat("retried early", lt.logins.get(), is(3));
+		clock.advance(1);
+		awaitLogins(rt, lt, 4);
+		assertTrue("unexpired token not served", rt.getToken() == t1);
+	}
+	
+	@Test
+	public void refreshingTokenHungLogin() throws Exception {
+		ManualClock clock = new ManualClock();
+		LoginTransport hung = new LoginTransport();
+		hung.hang = new CountDownLatch(1);
+		LoginTransport lt = new LoginTransport();
+		try {
+			RefreshingToken h = new ConfigurableAuthService(new AuthConfig()
+					.withTransport(hung).withClock(clock))
+					.getRefreshingToken("fakeuser", "pwd", 1);
+			RefreshingToken rt = new ConfigurableAuthService(new AuthConfig()
+					.withTransport(lt).withClock(clock))
+					.getRefreshingToken("fakeuser", "pwd", 1);
+			AuthToken h1 = h.getToken();
+			AuthToken t1 = rt.getToken();
+			clock.advance(750);
+			awaitLogins(h, hung, 2);
+			awaitLogins(rt, lt, 2);
+			while (rt.getToken() == t1) {
+				Thread.yield();
+			}
+			assertTrue("hung token not served", h.getToken() == h1);
+			// no second refresh while the hung login is in progress
+			clock.advance(10000);
+			for (int i = 0; i < 10000; i++) {
+				h.getToken();
+			}
+			assertThat("refreshed during login", hung.logins.get(), is(2));
+		} finally {
+			hung.hang.countDown();
+		}
+	}
+	
+	@Test
+	public void refreshingTokenManager() throws Exception {
+		RefreshingTokenManager m = new RefreshingTokenManager(
+				new ConfigurableAuthService(), 60);
+		RefreshingToken rt = m.getRefreshingToken(TEST_UID, TEST_PW, 10000);
+		assertTrue("token not shared",
+				rt == m.getRefreshingToken(TEST_UID, TEST_PW, 10000));
+		assertTrue("token shared across intervals",
+				rt != m.getRefreshingToken(TEST_UID, TEST_PW, 20000));
+		assertThat("incorrect user", rt.getToken().getUserName(),
+				is(TEST_UID));
+		try {
+			m.getRefreshingToken(TEST_UID, TEST_PW + "x", 10000);
+			fail("got token with bad password");
+		} catch (AuthException ae) {
+			// expected
+		}
+	}
+	
 	@Test
 	public void refreshTokenWithBadArgs() throws Exception {
 		failMakeRefreshToken(TEST_UID, TEST_PW, -1,
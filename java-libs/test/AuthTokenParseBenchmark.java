@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.TokenFormatException;
+
+/**
+ * Compares the time taken to parse tokens with the AuthToken constructor
+ * against the previous parser, which split the token with regular
+ * expressions into a map and calculated the issue date with a Calendar.
+ *
+ * Each round parses every token in a set of distinct, realistically sized
+ * tokens. The first rounds are discarded to let the JIT compiler warm up.
+ * AuthToken.parse() is measured separately on a set of tokens small enough
+ * to stay in its cache, as for tokens that are presented repeatedly.
+ *
+ * Usage: java AuthTokenParseBenchmark [tokens] [rounds]
+ */
+public class AuthTokenParseBenchmark {
+
+	private static final int WARMUP_ROUNDS = 10;
+	private static final int HOT_TOKENS = 500;
+
+	// defeats dead code elimination
+	private static long sink = 0;
+
+	public static void main(String[] args) throws Exception {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		final List<String> tokens = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			tokens.add(makeToken("user" + i));
+		}
+		System.out.println(String.format("tokens: %s rounds: %s",
+				count, rounds));
+		final List<String> hot = tokens.subList(0,
+				Math.min(HOT_TOKENS, count));
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			runLegacy(tokens);
+			runCurrent(tokens);
+			runCached(hot, count);
+		}
+		long legacy = 0;
+		long current = 0;
+		long cached = 0;
+		for (int i = 0; i < rounds; i++) {
+			legacy += runLegacy(tokens);
+			current += runCurrent(tokens);
+			cached += runCached(hot, count);
+		}
+		final long ops = (long) count * rounds;
+		System.out.println(String.format("%-8s %8.1f ns/token",
+				"split", (double) legacy / ops));
+		System.out.println(String.format("%-8s %8.1f ns/token",
+				"scan", (double) current / ops));
+		System.out.println(String.format("%-8s %8.1f ns/token",
+				"parse", (double) cached / ops));
+		System.out.println("(" + sink + ")");
+	}
+
+	private static long runLegacy(final List<String> tokens)
+			throws Exception {
+		final long start = System.nanoTime();
+		for (final String t: tokens) {
+			sink += parseLegacy(t);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long runCurrent(final List<String> tokens)
+			throws Exception {
+		final long start = System.nanoTime();
+		for (final String t: tokens) {
+			final AuthToken at = new AuthToken(t);
+			sink += at.getUserName().length() + at.getTokenData().length();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/* Parses the tokens repeatedly, for as many parses as the other runs. */
+	private static long runCached(final List<String> tokens, final int count)
+			throws Exception {
+		final long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			final AuthToken at = AuthToken.parse(tokens.get(i % tokens.size()));
+			sink += at.getExpiryTime();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/* The parser used by AuthToken before it was replaced with a scanner. */
+	private static long parseLegacy(final String token)
+			throws TokenFormatException {
+		final Map<String, String> parsed = new HashMap<String, String>();
+		for (final String field: token.split("[|]")) {
+			final String[] keyValuePair = field.split("[=]");
+			if (keyValuePair.length != 2) {
+				throw new TokenFormatException(
+						"Auth token is in the incorrect format, near '" +
+						field + "'");
+			}
+			parsed.put(keyValuePair[0], keyValuePair[1]);
+		}
+		final int sigPos = token.indexOf("|sig=");
+		if (sigPos == -1 || token.length() < sigPos + 5) {
+			throw new TokenFormatException(
+					"Auth token is in the incorrect format - might be " +
+					"missing the signature?");
+		}
+		final Date exp = new Date(Long.parseLong(parsed.get("expiry")) * 1000);
+		final Calendar cal = Calendar.getInstance();
+		cal.setTime(exp);
+		cal.add(Calendar.YEAR, -1);
+		cal.add(Calendar.DAY_OF_YEAR, 1);
+		final String tokenData = token.substring(0, sigPos);
+		return parsed.get("un").length() + tokenData.length() +
+				cal.getTimeInMillis();
+	}
+
+	private static String makeToken(final String id) {
+		final long expiry = System.currentTimeMillis() / 1000 +
+				335L * 24 * 60 * 60;
+		final StringBuilder sig = new StringBuilder();
+		while (sig.length() < 256) {
+			sig.append(Integer.toHexString(id.hashCode() + sig.length()));
+		}
+		return "un=" + id + "|tokenid=" + java.util.UUID.nameUUIDFromBytes(
+				id.getBytes()) + "|expiry=" + expiry + "|client_id=" + id +
+				"|token_type=Bearer|SigningSubject=" +
+				"https://nexus.api.globusonline.org/goauth/keys/" +
+				"0a2ae5d6-7a3b-11e2-a9b2-12313d0b2ea5|sig=" +
+				sig.substring(0, 256);
+	}
+}
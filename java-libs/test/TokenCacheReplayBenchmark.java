@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.TokenCache;
+
+/**
+ * Replays a synthetic token validation trace against a TokenCache with and
+ * without the TinyLFU admission filter and reports the hit ratios.
+ *
+ * The trace mixes requests from interactive users, who present the same long
+ * lived token over and over with a skewed (Zipfian) popularity, with bursts
+ * from batch jobs that mint a fresh token for every task and present it once.
+ * Each miss is followed by putting the token into the cache, as
+ * AuthService.validateToken does after a successful round trip to the auth
+ * server.
+ *
+ * Usage: java TokenCacheReplayBenchmark [users] [requests] [cachesize]
+ */
+public class TokenCacheReplayBenchmark {
+
+	private static final long SEED = 42;
+	// fraction of the trace that is made up of one-off batch tokens
+	private static final double BATCH_FRACTION = 0.5;
+	private static final int BATCH_BURST = 5000;
+	private static final double ZIPF_EXPONENT = 0.9;
+
+	public static void main(String[] args) throws Exception {
+		final int users = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		final int requests = args.length > 1 ?
+				Integer.parseInt(args[1]) : 500000;
+		final int size = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		final List<AuthToken> trace = buildTrace(users, requests);
+		System.out.println(String.format(
+				"users: %s requests: %s cache size: %s/%s",
+				users, trace.size(), size, size * 2));
+		report("LRU", new TokenCache(size, size * 2), trace);
+		report("LRU + TinyLFU", new TokenCache(size, size * 2, true), trace);
+	}
+
+	private static void report(
+			final String name,
+			final TokenCache cache,
+			final List<AuthToken> trace)
+			throws Exception {
+		final long start = System.nanoTime();
+		long hits = 0;
+		for (final AuthToken t: trace) {
+			if (cache.hasToken(t)) {
+				hits++;
+			} else {
+				cache.putValidToken(t);
+			}
+		}
+		final long ms = (System.nanoTime() - start) / 1000000;
+		System.out.println(String.format(
+				"%-14s hit ratio: %.2f%% (%s ms)",
+				name, 100.0 * hits / trace.size(), ms));
+	}
+
+	private static List<AuthToken> buildTrace(
+			final int users,
+			final int requests)
+			throws Exception {
+		final Random r = new Random(SEED);
+		final List<AuthToken> userTokens = new ArrayList<AuthToken>();
+		for (int i = 0; i < users; i++) {
+			userTokens.add(makeToken("user" + i));
+		}
+		final double[] cdf = zipfCdf(users);
+		final List<AuthToken> trace = new ArrayList<AuthToken>(requests);
+		// chance of starting a batch burst rather than a user request
+		final double burst = BATCH_FRACTION /
+				(BATCH_BURST * (1 - BATCH_FRACTION) + BATCH_FRACTION);
+		int batchToken = 0;
+		while (trace.size() < requests) {
+			if (r.nextDouble() < burst) {
+				for (int i = 0; i < BATCH_BURST; i++) {
+					trace.add(makeToken("batch" + batchToken++));
+				}
+			} else {
+				trace.add(userTokens.get(sample(cdf, r.nextDouble())));
+			}
+		}
+		return trace;
+	}
+
+	private static double[] zipfCdf(final int n) {
+		final double[] cdf = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+			cdf[i] = sum;
+		}
+		for (int i = 0; i < n; i++) {
+			cdf[i] /= sum;
+		}
+		return cdf;
+	}
+
+	private static int sample(final double[] cdf, final double p) {
+		int lo = 0;
+		int hi = cdf.length - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (cdf[mid] < p) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static AuthToken makeToken(final String id) throws Exception {
+		// tokens expire a year after issue, so this token is ~1 month old
+		final long expiry = System.currentTimeMillis() / 1000 +
+				335L * 24 * 60 * 60;
+		return new AuthToken("un=" + id + "|tokenid=" + id + "|expiry=" +
+				expiry + "|client_id=" + id + "|token_type=Bearer|" +
+				"SigningSubject=https://nexus.api.globusonline.org/goauth/keys/" +
+				id + "|sig=" + Integer.toHexString(id.hashCode()));
+	}
+}